@@ -0,0 +1,483 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed store for document bodies. Every body is kept once,
+ * keyed by the hash of its content, so identical contents across documents
+ * and versions share a single copy. A new version of a document may be kept
+ * as a delta against its previous version; every few versions a full copy
+ * (a keyframe) is kept instead, so no read walks a long chain of deltas.
+ * Full copies of large contents are kept deflated; they are inflated when
+ * read, and the last ones read are kept inflated in a small LRU cache.
+ * Contents no longer needed by the current version can be moved off the
+ * heap into pack files, and contents no version refers to any more can be
+ * removed.
+ * Reads may run concurrently with each other and with one writer; writes
+ * (put and pack) must be serialised by the caller.
+ * @author
+ *
+ */
+public class BlobStore {
+
+	/* The digest algorithm used to address contents. */
+	private static final String ALGORITHM = "SHA-1";
+
+	/* The default longest chain of deltas between two keyframes. */
+	public static final int DEFAULT_MAX_CHAIN_DEPTH = 16;
+
+	/* The default length from which full copies are deflated. */
+	public static final int DEFAULT_COMPRESS_THRESHOLD = 4096;
+
+	/* The default number of characters the cache of inflated contents holds. */
+	public static final int DEFAULT_CACHE_CHARS = 1 << 20;
+
+	/* The contents stored on the heap, keyed by their hash. A value is
+	 * either the content as a String, a Compressed content or a Delta
+	 * against another content. */
+	private final Map<String, Object> blobs;
+
+	/* The pack files holding the contents moved off the heap. */
+	private final List<PackFile> packs;
+
+	/* The longest chain of deltas allowed before a keyframe is stored. */
+	private final int maxChainDepth;
+
+	/* The length from which full copies are deflated. */
+	private final int compressThreshold;
+
+	/* The inflated contents read last, keyed by their hash, in access
+	 * order. Guarded by itself. */
+	private final LinkedHashMap<String, String> cache;
+
+	/* The most characters the cache holds. */
+	private final int cacheChars;
+
+	/* The number of characters the cache holds. Guarded by the cache. */
+	private long cachedChars;
+
+	/* The total number of bytes the stored contents take on the heap,
+	 * counting two per character of the Strings. Updated by puts, packs 
+	 * and removals under different repo locks, so kept atomic. */
+	private final AtomicLong storedBytes;
+
+	/* The total number of characters of the contents held on the heap, as
+	 * if none of them was stored as a delta. Atomic as storedBytes is. */
+	private final AtomicLong contentChars;
+
+	/**
+	 * Constructs an empty blob store with the default chain depth.
+	 */
+	public BlobStore() {
+		this(DEFAULT_MAX_CHAIN_DEPTH);
+	}
+
+	/**
+	 * Constructs an empty blob store.
+	 * @param maxChainDepth The longest chain of deltas allowed before a full
+	 * copy is stored; 0 stores every content in full.
+	 * @throws IllegalArgumentException if maxChainDepth is negative.
+	 */
+	public BlobStore(int maxChainDepth) {
+		this(maxChainDepth, DEFAULT_COMPRESS_THRESHOLD, DEFAULT_CACHE_CHARS);
+	}
+
+	/**
+	 * Constructs an empty blob store which deflates large contents.
+	 * @param maxChainDepth The longest chain of deltas allowed before a full
+	 * copy is stored; 0 stores every content in full.
+	 * @param compressThreshold The length from which full copies are
+	 * deflated; Integer.MAX_VALUE never deflates.
+	 * @param cacheChars The most characters of inflated contents cached.
+	 * @throws IllegalArgumentException if any argument is negative.
+	 */
+	public BlobStore(int maxChainDepth, int compressThreshold, int cacheChars) {
+		if(maxChainDepth < 0||compressThreshold < 0||cacheChars < 0) throw new IllegalArgumentException();
+		this.blobs = new ConcurrentHashMap<String, Object>();
+		this.packs = new CopyOnWriteArrayList<PackFile>();
+		this.maxChainDepth = maxChainDepth;
+		this.compressThreshold = compressThreshold;
+		this.cache = new LinkedHashMap<String, String>(16, 0.75f, true);
+		this.cacheChars = cacheChars;
+		this.cachedChars = 0;
+		this.storedBytes = new AtomicLong();
+		this.contentChars = new AtomicLong();
+	}
+
+	/**
+	 * Computes the hash which addresses a content.
+	 * @param content The content to hash.
+	 * @return The hex encoded hash of the content.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static String hash(String content) {
+		if(content==null) throw new IllegalArgumentException();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] bytes = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+		StringBuilder hex = new StringBuilder(bytes.length*2);
+		for(byte b : bytes){
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Stores a content in full on the heap if it is not there yet. A content
+	 * which was packed is stored again, since it is in use by a new version.
+	 * @param content The content to store.
+	 * @return The hash addressing the content.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public String put(String content) {
+		return put(content, null);
+	}
+
+	/**
+	 * Stores a new version of a content on the heap if it is not there yet.
+	 * The content is kept as a delta against the previous version when that
+	 * is smaller and the chain of deltas is not too long already; otherwise
+	 * it is kept in full, deflated if it is long enough.
+	 * @param content The content to store.
+	 * @param baseKey The hash of the previous version, or null if none.
+	 * @return The hash addressing the content.
+	 * @throws IllegalArgumentException if content is null.
+	 */
+	public String put(String content, String baseKey) {
+		String key = hash(content);
+		if(this.blobs.containsKey(key)) return key;
+		Object stored = content;
+		if(baseKey!=null && this.blobs.containsKey(baseKey) && depth(baseKey) < this.maxChainDepth){
+			Delta delta = Delta.between(baseKey, get(baseKey), content, depth(baseKey) + 1);
+			if(delta.middle.length() < content.length()/2) stored = delta;
+		}
+		if(stored==content && content.length() >= this.compressThreshold){
+			Compressed compressed = Compressed.deflate(content);
+			if(compressed.data.length < compressed.byteLength) stored = compressed;
+		}
+		// Counted once, if another put stored the same content meanwhile.
+		if(this.blobs.putIfAbsent(key, stored)!=null) return key;
+		this.storedBytes.addAndGet(heapBytes(stored));
+		this.contentChars.addAndGet(content.length());
+		return key;
+	}
+
+	/**
+	 * Returns the content addressed by a hash.
+	 * @param key The hash of the content.
+	 * @return The content if stored, null otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public String get(String key) {
+		if(key==null) throw new IllegalArgumentException();
+		Object stored = this.blobs.get(key);
+		if(stored instanceof Delta){
+			Delta delta = (Delta)stored;
+			return delta.apply(get(delta.baseKey));
+		}
+		if(stored instanceof Compressed){
+			return inflate(key, (Compressed)stored);
+		}
+		String content = (String)stored;
+		for(int i = this.packs.size()-1; content==null && i >= 0; i--){
+			content = this.packs.get(i).get(key);
+		}
+		return content;
+	}
+
+	/* Returns a deflated content, from the cache if it was read lately. */
+	private String inflate(String key, Compressed compressed) {
+		synchronized (this.cache) {
+			String content = this.cache.get(key);
+			if(content!=null) return content;
+		}
+		String content = compressed.inflate();
+		if(content.length() > this.cacheChars) return content;
+		synchronized (this.cache) {
+			if(this.cache.put(key, content)==null) this.cachedChars += content.length();
+			Iterator<String> eldest = this.cache.values().iterator();
+			while(this.cachedChars > this.cacheChars){
+				this.cachedChars -= eldest.next().length();
+				eldest.remove();
+			}
+		}
+		return content;
+	}
+
+	/* Drops a content from the cache of inflated contents. */
+	private void uncache(String key) {
+		synchronized (this.cache) {
+			String content = this.cache.remove(key);
+			if(content!=null) this.cachedChars -= content.length();
+		}
+	}
+
+	/* Returns the number of bytes a stored content takes on the heap. */
+	private static long heapBytes(Object stored) {
+		if(stored instanceof Delta) return 2L*((Delta)stored).middle.length();
+		if(stored instanceof Compressed) return ((Compressed)stored).data.length;
+		return 2L*((String)stored).length();
+	}
+
+	/* Returns the length of a stored content once rebuilt. */
+	private static int contentLength(Object stored) {
+		if(stored instanceof Delta){
+			Delta delta = (Delta)stored;
+			return delta.prefix + delta.middle.length() + delta.suffix;
+		}
+		if(stored instanceof Compressed) return ((Compressed)stored).length;
+		return ((String)stored).length();
+	}
+
+	/* Returns the number of deltas to apply to read a content. */
+	private int depth(String key) {
+		Object stored = this.blobs.get(key);
+		return stored instanceof Delta ? ((Delta)stored).depth : 0;
+	}
+
+	/**
+	 * Moves every content stored on the heap, except the ones still in use,
+	 * into a new pack file. The bases of the contents in use are kept as
+	 * well, and the contents are packed in full.
+	 * @param inUse The hashes of the contents to keep on the heap.
+	 * @param file The pack file to write.
+	 * @return The number of contents moved.
+	 * @throws IOException if the pack file can't be written.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public int pack(Set<String> inUse, File file) throws IOException {
+		if(inUse==null||file==null) throw new IllegalArgumentException();
+		Set<String> kept = new HashSet<String>();
+		for(String key : inUse){
+			String k = key;
+			while(k!=null && kept.add(k)){
+				Object stored = this.blobs.get(k);
+				k = stored instanceof Delta ? ((Delta)stored).baseKey : null;
+			}
+		}
+		SortedMap<String, String> cold = new TreeMap<String, String>();
+		for(String key : this.blobs.keySet()){
+			if(!kept.contains(key)) cold.put(key, get(key));
+		}
+		if(cold.isEmpty()) return 0;
+		this.packs.add(PackFile.write(file, cold));
+		for(Map.Entry<String, String> e : cold.entrySet()){
+			Object stored = this.blobs.remove(e.getKey());
+			this.storedBytes.addAndGet(-heapBytes(stored));
+			this.contentChars.addAndGet(-e.getValue().length());
+			uncache(e.getKey());
+		}
+		return cold.size();
+	}
+
+	/**
+	 * Adds a content to a set of live contents, with the contents it is 
+	 * stored as a delta against, which must stay on the heap with it.
+	 * @param key The hash of the live content.
+	 * @param marked The set of live contents.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public void mark(String key, Set<String> marked) {
+		if(key==null||marked==null) throw new IllegalArgumentException();
+		String k = key;
+		while(k!=null && marked.add(k)){
+			Object stored = this.blobs.get(k);
+			k = stored instanceof Delta ? ((Delta)stored).baseKey : null;
+		}
+	}
+
+	/**
+	 * Returns the hashes of the contents stored on the heap.
+	 * @return A new list of hashes.
+	 */
+	public List<String> keys() {
+		return new ArrayList<String>(this.blobs.keySet());
+	}
+
+	/**
+	 * Removes a content from the heap. The caller makes sure no version 
+	 * refers to it and no content kept is stored as a delta against it; 
+	 * contents in pack files stay there.
+	 * @param key The hash of the content.
+	 * @return The number of bytes freed, 0 if the content was not on the 
+	 * heap.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public long remove(String key) {
+		if(key==null) throw new IllegalArgumentException();
+		Object stored = this.blobs.remove(key);
+		if(stored==null) return 0;
+		long freed = heapBytes(stored);
+		this.storedBytes.addAndGet(-freed);
+		this.contentChars.addAndGet(-contentLength(stored));
+		uncache(key);
+		return freed;
+	}
+
+	/**
+	 * Returns the number of distinct contents stored on the heap.
+	 * @return The blob count.
+	 */
+	public int size() {
+		return this.blobs.size();
+	}
+
+	/**
+	 * Returns the number of pack files the store reads from.
+	 * @return The pack count.
+	 */
+	public int getPackCount() {
+		return this.packs.size();
+	}
+
+	/**
+	 * Returns the total number of bytes the stored contents take on the
+	 * heap, counting two per character of the Strings and the size of the
+	 * deflated contents. The cache of inflated contents is not counted.
+	 * @return The stored byte count.
+	 */
+	public long getStoredBytes() {
+		return this.storedBytes.get();
+	}
+
+	/**
+	 * Returns the number of characters the cache of inflated contents holds.
+	 * @return The cached character count.
+	 */
+	public long getCachedChars() {
+		synchronized (this.cache) {
+			return this.cachedChars;
+		}
+	}
+
+	/**
+	 * Returns the total number of characters of the contents on the heap,
+	 * as if every one of them was stored in full. Twice this, less
+	 * {@link #getStoredBytes()}, is what deltas and deflating saved.
+	 * @return The content character count.
+	 */
+	public long getContentChars() {
+		return this.contentChars.get();
+	}
+
+	/**
+	 * A content stored deflated, as UTF-8.
+	 */
+	private static final class Compressed {
+		private final byte[] data;
+		private final int byteLength;
+		private final int length;
+
+		private Compressed(byte[] data, int byteLength, int length) {
+			this.data = data;
+			this.byteLength = byteLength;
+			this.length = length;
+		}
+
+		/* Deflates a content. */
+		static Compressed deflate(String content) {
+			byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(bytes);
+				deflater.finish();
+				byte[] out = new byte[bytes.length/2 + 64];
+				int size = 0;
+				while(!deflater.finished()){
+					if(size==out.length) out = Arrays.copyOf(out, out.length*2);
+					size += deflater.deflate(out, size, out.length - size);
+				}
+				return new Compressed(Arrays.copyOf(out, size), bytes.length, content.length());
+			} finally {
+				deflater.end();
+			}
+		}
+
+		/* Rebuilds the content. */
+		String inflate() {
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(this.data);
+				byte[] bytes = new byte[this.byteLength];
+				int size = 0;
+				while(size < bytes.length){
+					int n = inflater.inflate(bytes, size, bytes.length - size);
+					if(n==0 && (inflater.finished() || inflater.needsInput())) throw new IllegalStateException("Truncated content");
+					size += n;
+				}
+				return new String(bytes, StandardCharsets.UTF_8);
+			} catch (DataFormatException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * A content stored as the part which differs from another content: the
+	 * base's leading and trailing characters are shared and only the middle
+	 * is replaced.
+	 */
+	private static final class Delta {
+		private final String baseKey;
+		private final int prefix;
+		private final int suffix;
+		private final String middle;
+		private final int depth;
+
+		private Delta(String baseKey, int prefix, int suffix, String middle, int depth) {
+			this.baseKey = baseKey;
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.middle = middle;
+			this.depth = depth;
+		}
+
+		/* Computes the delta turning a base into a content. */
+		static Delta between(String baseKey, String base, String content, int depth) {
+			int max = Math.min(base.length(), content.length());
+			int prefix = 0;
+			while(prefix < max && base.charAt(prefix)==content.charAt(prefix)) prefix++;
+			int suffix = 0;
+			while(suffix < max - prefix
+					&& base.charAt(base.length()-1-suffix)==content.charAt(content.length()-1-suffix)){
+				suffix++;
+			}
+			String middle = content.substring(prefix, content.length()-suffix);
+			return new Delta(baseKey, prefix, suffix, middle, depth);
+		}
+
+		/* Rebuilds the content from its base. */
+		String apply(String base) {
+			StringBuilder content = new StringBuilder(this.prefix + this.middle.length() + this.suffix);
+			content.append(base, 0, this.prefix);
+			content.append(this.middle);
+			content.append(base, base.length()-this.suffix, base.length());
+			return content.toString();
+		}
+	}
+}
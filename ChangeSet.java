@@ -1,30 +1,93 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
- * Represents a set of change(s) made to a repository.
+ * Represents a set of change(s) made to a repository. The changes are kept
+ * in parallel arrays rather than as objects: the id of the document, the
+ * type and a reference to the content of every change. Document names are
+ * kept once per change set, in a table giving them their ids. The changes
+ * can be read any number of times through cursors.
  * @author
  *
  */
 public class ChangeSet {
-	
-	/* Queue of changes contained within the change set. */
-	private final  QueueADT<Change> changes;
-	
+
+	/* The initial number of changes and documents the arrays hold. */
+	private static final int INITIAL_CAPACITY = 4;
+
+	/* The change types, indexed by the bytes stored for them. */
+	private static final Change.Type[] TYPES = Change.Type.values();
+
 	/* The name of the repository to which the changes belongs. */
 	private final String repoName;
-	
+
+	/* The name of the user who made the changes, null if unknown. */
+	private final String author;
+
+	/* The id of the document of every change. */
+	private int[] docIds;
+
+	/* The type of every change, as the ordinal of its Change.Type. */
+	private byte[] types;
+
+	/* The content of the document after every change. */
+	private String[] contents;
+
+	/* The number of changes added. */
+	private int size;
+
+	/* The number of changes removed by getNextChange. */
+	private int removed;
+
+	/* The name of every document, indexed by its id. */
+	private String[] docNames;
+
+	/* The content every document had before its first edit, by its id. */
+	private String[] baseContents;
+
+	/* The number of documents changed. */
+	private int docCount;
+
+	/* Open addressing table of the document ids plus one, by name hash. */
+	private int[] docTable;
+
+	/* The names of the documents whose merge had conflicts on approval. */
+	private final List<String> conflicts;
+
 	/**
-	 * Constructs a change set object. 
+	 * Constructs a change set object.
 	 * @param reponame The name of the repository.
 	 * @throws IllegalArgumentException if any argument is null.
 	 */
 	public ChangeSet(String repoName) {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
+		this(repoName, null);
+	}
+
+	/**
+	 * Constructs a change set object for the changes of a user.
+	 * @param reponame The name of the repository.
+	 * @param author The name of the user making the changes, or null.
+	 * @throws IllegalArgumentException if repoName is null.
+	 */
+	public ChangeSet(String repoName, String author) {
 		if(repoName==null) throw new IllegalArgumentException();
 		this.repoName = repoName;
-		this.changes = new SimpleQueue<Change>();
+		this.author = author;
+		this.docIds = new int[INITIAL_CAPACITY];
+		this.types = new byte[INITIAL_CAPACITY];
+		this.contents = new String[INITIAL_CAPACITY];
+		this.docNames = new String[INITIAL_CAPACITY];
+		this.baseContents = new String[INITIAL_CAPACITY];
+		this.docTable = new int[2 * INITIAL_CAPACITY];
+		this.conflicts = new ArrayList<String>(0);
 	}
-	
+
 	/**
 	 * Adds (queues) a new change to the change set.
 	 * @param doc The doc to which the change was done.
@@ -32,11 +95,72 @@ public class ChangeSet {
 	 * @throws IllegalArgumentException if any argument is null.
 	 */
 	public void addChange(Document doc, Change.Type type) {
-		// TODO: Implement this method. 
+		addChange(doc, type, null);
+	}
+
+	/**
+	 * Adds (queues) a new change to the change set, with the content the
+	 * document had before the change. An edit is merged on approval with
+	 * the changes approved since that content.
+	 * @param doc The doc to which the change was done.
+	 * @param type The type of the change.
+	 * @param baseContent The content before the change, or null if unknown.
+	 * @throws IllegalArgumentException if doc or type is null.
+	 */
+	public void addChange(Document doc, Change.Type type, String baseContent) {
 		if(doc==null||type==null) throw new IllegalArgumentException();
-		this.changes.enqueue(new Change(doc, type));
+		int docId = docId(doc.getName(), true);
+		if(type.equals(Change.Type.EDIT) && this.baseContents[docId]==null){
+			this.baseContents[docId] = baseContent;
+		}
+		if(this.size==this.docIds.length){
+			int capacity = this.size + (this.size >> 1);
+			this.docIds = Arrays.copyOf(this.docIds, capacity);
+			this.types = Arrays.copyOf(this.types, capacity);
+			this.contents = Arrays.copyOf(this.contents, capacity);
+		}
+		this.docIds[this.size] = docId;
+		this.types[this.size] = (byte)type.ordinal();
+		this.contents[this.size] = doc.getContent();
+		this.size++;
+	}
+
+	/* Returns the id of a document name, adding it if asked to; -1 if the
+	 * name is not there and not added. */
+	private int docId(String docName, boolean add) {
+		int mask = this.docTable.length - 1;
+		int h = docName.hashCode();
+		for(int slot = (h ^ (h >>> 16)) & mask; ; slot = (slot + 1) & mask){
+			int id = this.docTable[slot] - 1;
+			if(id < 0){
+				if(!add) return -1;
+				id = this.docCount++;
+				if(id==this.docNames.length){
+					int capacity = id + (id >> 1);
+					this.docNames = Arrays.copyOf(this.docNames, capacity);
+					this.baseContents = Arrays.copyOf(this.baseContents, capacity);
+				}
+				this.docNames[id] = docName;
+				this.docTable[slot] = id + 1;
+				if(2 * this.docCount > this.docTable.length) rehash();
+				return id;
+			}
+			if(this.docNames[id].equals(docName)) return id;
+		}
 	}
-	
+
+	/* Doubles the table of document ids. */
+	private void rehash() {
+		this.docTable = new int[2 * this.docTable.length];
+		int mask = this.docTable.length - 1;
+		for(int id = 0; id < this.docCount; id++){
+			int h = this.docNames[id].hashCode();
+			int slot = (h ^ (h >>> 16)) & mask;
+			while(this.docTable[slot]!=0) slot = (slot + 1) & mask;
+			this.docTable[slot] = id + 1;
+		}
+	}
+
 	/**
 	 * Returns the repository's name to which this change list belongs.
 	 * @return The repository's name.
@@ -44,36 +168,243 @@ public class ChangeSet {
 	public String getReponame() {
 		return this.repoName;
 	}
-	
+
+	/**
+	 * Returns the name of the user who made the changes.
+	 * @return The author's name, null if unknown.
+	 */
+	public String getAuthor() {
+		return this.author;
+	}
+
+	/**
+	 * Returns the content a document had before its first edit in the
+	 * change set.
+	 * @param docName The name of the document.
+	 * @return The content before the edits, null if unknown.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public String getBaseContent(String docName) {
+		if(docName==null) throw new IllegalArgumentException();
+		int docId = docId(docName, false);
+		return docId < 0 ? null : this.baseContents[docId];
+	}
+
+	/**
+	 * Records that merging the edit of a document had conflicts.
+	 * @param docName The name of the document.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public void addConflict(String docName) {
+		if(docName==null) throw new IllegalArgumentException();
+		this.conflicts.add(docName);
+	}
+
+	/**
+	 * Returns the documents whose edits conflicted with changes approved
+	 * since the base version. Their content holds conflict markers.
+	 * @return The names of the conflicting documents.
+	 */
+	public List<String> getConflicts() {
+		return Collections.unmodifiableList(this.conflicts);
+	}
+
 	/**
 	 * Returns and removes the next change from the change set.
 	 * @return The next change if present, null otherwise.
 	 */
 	public Change getNextChange() {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
-    	try {
-			return changes.dequeue();
-		} catch (EmptyQueueException e) {
-			e.printStackTrace();
-			return null;
-		}
+		if(this.removed==this.size) return null;
+		int i = this.removed++;
+		Document doc = new Document(this.docNames[this.docIds[i]], this.contents[i], this.repoName);
+		return new Change(doc, TYPES[this.types[i]]);
 	}
-	
+
 	/**
 	* Returns the count of changes contained in the change set.
 	* @return The count of changes.
 	*/
 	public int getChangeCount() {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
-    	return changes.size();
+		return this.size - this.removed;
 	}
-	
+
+	/**
+	 * Returns a cursor over the changes contained in the change set, in the
+	 * order they were added. Reading changes through a cursor does not
+	 * remove them, and there may be several cursors at a time.
+	 * @return A new cursor before the first change.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Returns the number of documents the change set changes.
+	 * @return The document count.
+	 */
+	public int getDocCount() {
+		return this.docCount;
+	}
+
+	/**
+	 * Estimates the bytes of heap the change set takes, leaving out the
+	 * names and contents, which it shares with the documents they came from.
+	 * @return The estimated size in bytes.
+	 */
+	public long estimateSize() {
+		// Arrays have a 16 byte header; references are taken as 8 bytes.
+		return 6 * 16 + 4L * this.docIds.length + this.types.length + 8L * this.contents.length
+				+ 8L * this.docNames.length + 8L * this.baseContents.length + 4L * this.docTable.length;
+	}
+
+	/**
+	 * Returns the total length of the contents of the changes.
+	 * @return The content character count.
+	 */
+	public long getContentLength() {
+		long chars = 0;
+		for(int i = this.removed; i < this.size; i++){
+			chars += this.contents[i].length();
+		}
+		return chars;
+	}
+
+	/**
+	 * Writes the changes contained in the change set. The conflicts of a
+	 * past approval are not written.
+	 * @param out The stream to write to.
+	 * @throws IOException if the stream can't be written.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		if(out==null) throw new IllegalArgumentException();
+		out.writeUTF(this.repoName);
+		out.writeBoolean(this.author!=null);
+		if(this.author!=null) out.writeUTF(this.author);
+		out.writeInt(this.docCount);
+		for(int id = 0; id < this.docCount; id++){
+			out.writeUTF(this.docNames[id]);
+			out.writeBoolean(this.baseContents[id]!=null);
+			if(this.baseContents[id]!=null) writeContent(out, this.baseContents[id]);
+		}
+		out.writeInt(this.size - this.removed);
+		for(int i = this.removed; i < this.size; i++){
+			out.writeInt(this.docIds[i]);
+			out.writeByte(this.types[i]);
+			writeContent(out, this.contents[i]);
+		}
+	}
+
+	/**
+	 * Reads a change set written by {@link #writeTo(DataOutputStream)}.
+	 * @param in The stream to read from.
+	 * @return The change set read.
+	 * @throws IOException if the stream can't be read or is malformed.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static ChangeSet readFrom(DataInputStream in) throws IOException {
+		if(in==null) throw new IllegalArgumentException();
+		String repoName = in.readUTF();
+		ChangeSet changeSet = new ChangeSet(repoName, in.readBoolean() ? in.readUTF() : null);
+		int docCount = in.readInt();
+		if(docCount < 0) throw new IOException("Bad document count " + docCount);
+		for(int id = 0; id < docCount; id++){
+			if(changeSet.docId(in.readUTF(), true)!=id) throw new IOException("Duplicate document name");
+			if(in.readBoolean()) changeSet.baseContents[id] = readContent(in);
+		}
+		int size = in.readInt();
+		if(size < 0) throw new IOException("Bad change count " + size);
+		for(int i = 0; i < size; i++){
+			int docId = in.readInt();
+			byte type = in.readByte();
+			if(docId < 0 || docId >= docCount || type < 0 || type >= TYPES.length){
+				throw new IOException("Bad change " + i);
+			}
+			Document doc = new Document(changeSet.docNames[docId], readContent(in), changeSet.repoName);
+			changeSet.addChange(doc, TYPES[type]);
+		}
+		return changeSet;
+	}
+
+	/* Writes a content as its length and its UTF-8 bytes, since it may be
+	 * too long for writeUTF. */
+	private static void writeContent(DataOutputStream out, String content) throws IOException {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readContent(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) throw new IOException("Bad content length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
 	@Override
 	public String toString() {
-		return this.changes.toString();	
+		StringBuilder str = new StringBuilder();
+		Cursor c = cursor();
+		while(c.next()){
+			str.append(new Change(c.getDoc(), c.getType()).toString()).append("\n");
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Reads the changes of the change set one after the other, without
+	 * removing them.
+	 */
+	public final class Cursor {
+
+		/* The index of the current change. */
+		private int index;
+
+		private Cursor() {
+			this.index = ChangeSet.this.removed - 1;
+		}
+
+		/**
+		 * Moves to the next change.
+		 * @return True if there is a next change, false at the end.
+		 */
+		public boolean next() {
+			if(this.index + 1 >= ChangeSet.this.size) return false;
+			this.index++;
+			return true;
+		}
+
+		/**
+		 * Returns the name of the document of the current change.
+		 * @return The document name.
+		 */
+		public String getDocName() {
+			return ChangeSet.this.docNames[ChangeSet.this.docIds[this.index]];
+		}
+
+		/**
+		 * Returns the type of the current change.
+		 * @return The change type.
+		 */
+		public Change.Type getType() {
+			return TYPES[ChangeSet.this.types[this.index]];
+		}
+
+		/**
+		 * Returns the content of the document after the current change.
+		 * @return The content.
+		 */
+		public String getContent() {
+			return ChangeSet.this.contents[this.index];
+		}
+
+		/**
+		 * Builds the document of the current change.
+		 * @return A new document.
+		 */
+		public Document getDoc() {
+			return new Document(getDocName(), getContent(), ChangeSet.this.repoName);
+		}
 	}
 }
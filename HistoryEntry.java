@@ -0,0 +1,150 @@
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An entry of the version history of a repository: who approved a version,
+ * who authored its changes, when it was made and which documents it
+ * touched. Entries are immutable.
+ * @author
+ *
+ */
+public class HistoryEntry {
+
+	/* The version the entry describes. */
+	private final int version;
+
+	/* The name of the user who approved the version. */
+	private final String committer;
+
+	/* The names of the users who checked in the changes, in order. */
+	private final List<String> authors;
+
+	/* The number of changes approved in the version. */
+	private final int changeCount;
+
+	/* The names of the documents the version added, edited or deleted. */
+	private final List<String> touchedDocs;
+
+	/* The time the version was made, in milliseconds since the epoch. */
+	private final long timestamp;
+
+	/**
+	 * Constructs a history entry.
+	 * @param version The version described.
+	 * @param committer The name of the user who approved the version.
+	 * @param authors The names of the users who checked in the changes.
+	 * @param changeCount The number of changes approved in the version.
+	 * @param touchedDocs The names of the documents the version changed.
+	 * @param timestamp The time the version was made, in milliseconds.
+	 * @throws IllegalArgumentException if committer, authors or touchedDocs 
+	 * is null.
+	 */
+	public HistoryEntry(int version, String committer, List<String> authors, int changeCount,
+			List<String> touchedDocs, long timestamp) {
+		if(committer==null||authors==null||touchedDocs==null) throw new IllegalArgumentException();
+		this.version = version;
+		this.committer = committer;
+		this.authors = new ArrayList<String>(authors);
+		this.changeCount = changeCount;
+		this.touchedDocs = new ArrayList<String>(touchedDocs);
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Returns the version the entry describes.
+	 * @return The version.
+	 */
+	public int getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Returns the name of the user who approved the version.
+	 * @return The committer's name.
+	 */
+	public String getCommitter() {
+		return this.committer;
+	}
+
+	/**
+	 * Returns the names of the users who checked in the changes of the
+	 * version, each once, in the order their check-ins were approved.
+	 * @return The authors' names; empty if none is known.
+	 */
+	public List<String> getAuthors() {
+		return Collections.unmodifiableList(this.authors);
+	}
+
+	/**
+	 * Returns the number of changes approved in the version.
+	 * @return The change count.
+	 */
+	public int getChangeCount() {
+		return this.changeCount;
+	}
+
+	/**
+	 * Returns the names of the documents the version added, edited or
+	 * deleted.
+	 * @return The touched document names.
+	 */
+	public List<String> getTouchedDocs() {
+		return Collections.unmodifiableList(this.touchedDocs);
+	}
+
+	/**
+	 * Returns the time the version was made.
+	 * @return The time in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * Returns the entry of this version once it covers older versions 
+	 * squashed into it: the authors, changes and touched documents of all 
+	 * of them are combined.
+	 * @param older The entries of the versions squashed, oldest first.
+	 * @return A new entry for this version.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public HistoryEntry squash(List<HistoryEntry> older) {
+		if(older==null) throw new IllegalArgumentException();
+		Set<String> allAuthors = new LinkedHashSet<String>();
+		Set<String> allDocs = new TreeSet<String>();
+		int allChanges = this.changeCount;
+		for(HistoryEntry e : older){
+			allAuthors.addAll(e.authors);
+			allDocs.addAll(e.touchedDocs);
+			allChanges += e.changeCount;
+		}
+		allAuthors.addAll(this.authors);
+		allDocs.addAll(this.touchedDocs);
+		return new HistoryEntry(this.version, this.committer, new ArrayList<String>(allAuthors), allChanges,
+				new ArrayList<String>(allDocs), this.timestamp);
+	}
+
+	@Override
+	public String toString() {
+		String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(this.timestamp));
+		StringBuilder str = new StringBuilder();
+		str.append("Version ").append(this.version).append(" by ").append(this.committer);
+		if(!this.authors.isEmpty() && !(this.authors.size()==1 && this.authors.get(0).equals(this.committer))){
+			str.append(" (changes by ");
+			for(int i = 0; i < this.authors.size(); i++){
+				if(i > 0) str.append(", ");
+				str.append(this.authors.get(i));
+			}
+			str.append(")");
+		}
+		str.append(" at ").append(time).append(", ").append(this.changeCount).append(" change(s) to ")
+				.append(this.touchedDocs.size()).append(" document(s)");
+		return str.toString();
+	}
+}
@@ -0,0 +1,230 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Prunes the history of a repository by a retention policy and frees the
+ * contents no version refers to any more. A cycle works in small steps:
+ * versions are dropped a batch at a time, the live contents are marked
+ * without any lock, and the others are removed a batch at a time. Only the
+ * steps which change the repo hold its write lock, each briefly, so
+ * approvals wait at most one batch; check-ins and checkouts never wait.
+ * The contents of a version dropped while a working copy still reads from
+ * it are kept until the working copy is gone: they are freed by the first
+ * cycle after the snapshot was garbage collected.
+ * Cycles may be run on demand or on a background thread.
+ * @author
+ *
+ */
+public class HistoryGc {
+
+	/* The least number of versions dropped or contents swept per batch; 
+	 * larger histories are done in 16 batches. */
+	private static final int BATCH_SIZE = 256;
+
+	/* The repo collected. */
+	private final Repo repo;
+
+	/* The policy telling which versions are kept. */
+	private final RetentionPolicy policy;
+
+	/* The thread running the cycles in the background, null if stopped. */
+	private ScheduledExecutorService scheduler;
+
+	/* The report of the last cycle, null before the first one. */
+	private volatile Report lastReport;
+
+	/**
+	 * Constructs a collector for a repo.
+	 * @param repo The repo to collect.
+	 * @param policy The retention policy of its history.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public HistoryGc(Repo repo, RetentionPolicy policy) {
+		if(repo==null||policy==null) throw new IllegalArgumentException();
+		this.repo = repo;
+		this.policy = policy;
+	}
+
+	/**
+	 * Runs a cycle as of the current time.
+	 * @return The report of the cycle.
+	 */
+	public Report runOnce() {
+		return runOnce(System.currentTimeMillis());
+	}
+
+	/**
+	 * Runs a cycle: prunes the history, then frees the contents no version
+	 * left refers to. Cycles are run one at a time.
+	 * @param now The time the ages of the versions are measured from.
+	 * @return The report of the cycle.
+	 */
+	public synchronized Report runOnce(long now) {
+		long start = System.nanoTime();
+		int[] drops = this.repo.planPrune(this.policy, now);
+		int batch = Math.max(BATCH_SIZE, drops.length / 16);
+		int versionsDropped = 0;
+		for(int from = 0; from < drops.length; from += batch){
+			versionsDropped += this.repo.dropVersions(drops, from, Math.min(drops.length, from + batch));
+			Thread.yield();
+		}
+
+		// Mark the contents of every snapshot still readable.
+		BlobStore blobs = this.repo.getBlobs();
+		Set<String> marked = new HashSet<String>();
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Set<RepoSnapshot> seen = Collections.newSetFromMap(new IdentityHashMap<RepoSnapshot, Boolean>());
+		for(RepoSnapshot s : this.repo.getRetainedSnapshots()){
+			mark(s, blobs, marked, visited, seen);
+		}
+
+		// Sweep the others, marking first the versions made meanwhile.
+		List<String> keys = blobs.keys();
+		int blobsFreed = 0;
+		long bytesFreed = 0;
+		Lock lock = RepoLocks.forRepo(this.repo.getName()).writeLock();
+		batch = Math.max(BATCH_SIZE, keys.size() / 16);
+		for(int from = 0; from < keys.size(); from += batch){
+			lock.lock();
+			try {
+				for(RepoSnapshot s = this.repo.getHead(); s!=null && !seen.contains(s); s = s.getParent()){
+					mark(s, blobs, marked, visited, seen);
+				}
+				for(int i = from; i < Math.min(keys.size(), from + batch); i++){
+					if(marked.contains(keys.get(i))) continue;
+					bytesFreed += blobs.remove(keys.get(i));
+					blobsFreed++;
+				}
+			} finally {
+				lock.unlock();
+			}
+			Thread.yield();
+		}
+		Report report = new Report(versionsDropped, blobsFreed, bytesFreed,
+				(System.nanoTime() - start) / 1000000);
+		this.lastReport = report;
+		return report;
+	}
+
+	/* Marks the contents of a snapshot not seen yet, with their bases. */
+	private static void mark(RepoSnapshot s, BlobStore blobs, Set<String> marked, Set<Object> visited,
+			Set<RepoSnapshot> seen) {
+		if(!seen.add(s)) return;
+		Set<String> hashes = new HashSet<String>();
+		s.getDocHashes().collectHashes(hashes, visited);
+		for(String hash : hashes){
+			blobs.mark(hash, marked);
+		}
+	}
+
+	/**
+	 * Starts running cycles on a background thread, at a fixed delay from
+	 * the end of one to the start of the next. Does nothing if started.
+	 * @param periodMillis The delay between cycles in milliseconds.
+	 * @throws IllegalArgumentException if periodMillis is not positive.
+	 */
+	public synchronized void start(long periodMillis) {
+		if(periodMillis <= 0) throw new IllegalArgumentException();
+		if(this.scheduler!=null) return;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "history-gc-" + repo.getName());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runOnce();
+				} catch (RuntimeException e) {
+					System.err.println("History GC of " + repo.getName() + " failed: " + e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops running cycles in the background. A cycle under way finishes.
+	 */
+	public synchronized void stop() {
+		if(this.scheduler==null) return;
+		this.scheduler.shutdown();
+		this.scheduler = null;
+	}
+
+	/**
+	 * Returns the report of the last cycle.
+	 * @return The report, null if no cycle ran yet.
+	 */
+	public Report getLastReport() {
+		return this.lastReport;
+	}
+
+	/**
+	 * What a cycle freed.
+	 */
+	public static final class Report {
+		private final int versionsDropped;
+		private final int blobsFreed;
+		private final long bytesFreed;
+		private final long millis;
+
+		private Report(int versionsDropped, int blobsFreed, long bytesFreed, long millis) {
+			this.versionsDropped = versionsDropped;
+			this.blobsFreed = blobsFreed;
+			this.bytesFreed = bytesFreed;
+			this.millis = millis;
+		}
+
+		/**
+		 * Returns the number of versions dropped from the history.
+		 * @return The version count.
+		 */
+		public int getVersionsDropped() {
+			return this.versionsDropped;
+		}
+
+		/**
+		 * Returns the number of contents removed from the heap.
+		 * @return The content count.
+		 */
+		public int getBlobsFreed() {
+			return this.blobsFreed;
+		}
+
+		/**
+		 * Returns the number of bytes the removed contents took on the heap,
+		 * as counted by {@link BlobStore#getStoredBytes()}.
+		 * @return The byte count.
+		 */
+		public long getBytesFreed() {
+			return this.bytesFreed;
+		}
+
+		/**
+		 * Returns how long the cycle took.
+		 * @return The time in milliseconds.
+		 */
+		public long getMillis() {
+			return this.millis;
+		}
+
+		@Override
+		public String toString() {
+			return this.versionsDropped + " version(s) dropped, " + this.blobsFreed + " content(s) freed, "
+					+ this.bytesFreed + " byte(s) in " + this.millis + " ms";
+		}
+	}
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * A stack of ints kept in an int array, for stacks of version numbers and 
+ * indices that would otherwise box every item, such as a repo's index of 
+ * the versions which touched each document. It grows and shrinks as 
+ * {@link SimpleStack} does; items are read in place with {@link #peek(int)} 
+ * or {@link #get(int)}.
+ * @author
+ *
+ */
+public class IntStack {
+
+	/* The initial length of the array. */
+	private static final int INITSIZE = 10;
+
+	/* The items, the bottom one first. */
+	private int[] items;
+
+	/* The number of items on the stack. */
+	private int numItems;
+
+	/**
+	 * Constructs an empty stack.
+	 */
+	public IntStack() {
+		this.items = new int[INITSIZE];
+		this.numItems = 0;
+	}
+
+	/**
+	 * Checks if the stack is empty.
+	 * @return True if it holds no item, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return this.numItems==0;
+	}
+
+	/**
+	 * Returns the number of items on the stack.
+	 * @return The size.
+	 */
+	public int size() {
+		return this.numItems;
+	}
+
+	/**
+	 * Adds an item on top of the stack.
+	 * @param item The item.
+	 */
+	public void push(int item) {
+		if(this.items.length==this.numItems) this.items = Arrays.copyOf(this.items, 2*this.items.length);
+		this.items[this.numItems++] = item;
+	}
+
+	/**
+	 * Returns the top item without removing it.
+	 * @return The top item.
+	 * @throws EmptyStackException if the stack is empty.
+	 */
+	public int peek() throws EmptyStackException {
+		return peek(0);
+	}
+
+	/**
+	 * Returns an item below the top without removing it.
+	 * @param depth The number of items above it; 0 is the top.
+	 * @return The item.
+	 * @throws EmptyStackException if the stack holds depth items or fewer.
+	 * @throws IllegalArgumentException if depth is negative.
+	 */
+	public int peek(int depth) throws EmptyStackException {
+		if(depth < 0) throw new IllegalArgumentException();
+		if(depth >= this.numItems) throw new EmptyStackException();
+		return this.items[this.numItems-1-depth];
+	}
+
+	/**
+	 * Returns an item by its position from the bottom without removing it.
+	 * @param index The number of items below it; 0 is the bottom.
+	 * @return The item.
+	 * @throws IndexOutOfBoundsException if index is negative or not less 
+	 * than the size.
+	 */
+	public int get(int index) {
+		if(index < 0 || index >= this.numItems) throw new IndexOutOfBoundsException();
+		return this.items[index];
+	}
+
+	/**
+	 * Removes and returns the top item.
+	 * @return The top item.
+	 * @throws EmptyStackException if the stack is empty.
+	 */
+	public int pop() throws EmptyStackException {
+		return popN(1);
+	}
+
+	/**
+	 * Removes a number of items from the top at once.
+	 * @param count The number of items to remove.
+	 * @return The last item removed, the one count - 1 below the top.
+	 * @throws EmptyStackException if the stack holds fewer than count 
+	 * items; the stack is left as it is.
+	 * @throws IllegalArgumentException if count is not positive.
+	 */
+	public int popN(int count) throws EmptyStackException {
+		if(count <= 0) throw new IllegalArgumentException();
+		if(count > this.numItems) throw new EmptyStackException();
+		this.numItems -= count;
+		int returned = this.items[this.numItems];
+		shrink();
+		return returned;
+	}
+
+	/* Halves the array while it is a quarter full, as SimpleStack does, so 
+	 * popping many items at once gives back all the memory they took. */
+	private void shrink() {
+		int length = this.items.length;
+		while(length > INITSIZE && this.numItems <= length/4){
+			length = Math.max(INITSIZE, length/2);
+		}
+		if(length < this.items.length) this.items = Arrays.copyOf(this.items, length);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder theItems = new StringBuilder();
+		for(int i = this.numItems-1; i >= 0; i--)
+			theItems.append(this.items[i]).append("\n");
+		return theItems.toString();
+	}
+}
@@ -0,0 +1,1044 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An append-only write-ahead log of the operations which change the state
+ * of the version control system. Every record is framed by its length and
+ * a checksum, so a record torn by a crash is detected and dropped when the
+ * log is reopened. Records are buffered when appended and made durable by
+ * {@link #sync()}; concurrent callers of sync share a single flush. A 
+ * change must not be acknowledged before the sync covering its record 
+ * returns. Records a failed sync did not write stay buffered for the next 
+ * one, and the file is cut back to the end of the last durable record.
+ * A record must be appended in the same critical section as the change it
+ * logs, so the records are in the order the changes were made: changes to
+ * the registry under the registry's lock, changes to a repo under its write
+ * lock and changes to a user under the user's lock. Check-outs, updates and
+ * check-ins, which read or queue into a repo, also hold the repo's read 
+ * lock; a check-in is queued and logged under the journal's own monitor, 
+ * so concurrent check-ins are logged in the order they are queued.
+ * Records which don't fit the state replayed before them are skipped.
+ * Once the records appended since the last snapshot grow past a threshold 
+ * and past the snapshot itself, {@link #checkpoint()} replaces the log with a snapshot of the state, so 
+ * a replay only goes through the changes made since. Every change holds 
+ * {@link #getChangeLock()}, before any other lock, while it is made and 
+ * logged, so a snapshot never sees half a change.
+ * @author
+ *
+ */
+public class Journal {
+
+	/* Record types. */
+	private static final byte ADD_USER = 1;
+	private static final byte DEL_USER = 2;
+	private static final byte ADD_REPO = 3;
+	private static final byte DEL_REPO = 4;
+	private static final byte SUBSCRIBE = 5;
+	private static final byte CHECK_OUT = 6;
+	private static final byte CHANGE = 7;
+	private static final byte CHECK_IN = 8;
+	private static final byte TAKE = 9;
+	private static final byte REVERT = 10;
+	private static final byte UPDATE = 11;
+	private static final byte APPROVE_ALL = 12;
+	private static final byte REVERT_TO = 13;
+	private static final byte APPROVE = 14;
+	private static final byte SNAPSHOT = 15;
+
+	/* The default bytes of records appended since the last snapshot past 
+	 * which a checkpoint is due, unless the snapshot is larger. */
+	public static final long DEFAULT_CHECKPOINT_BYTES = 16L << 20;
+
+	/* The size of the buffer a snapshot is written through. */
+	private static final int SNAPSHOT_BUFFER_SIZE = 1 << 16;
+
+	/* The change types, indexed by the bytes logged for them. */
+	private static final Change.Type[] TYPES = Change.Type.values();
+
+	/* The size of the length and checksum preceding every record. */
+	private static final int HEADER_SIZE = 8;
+
+	/* The log file. */
+	private final File file;
+
+	/* The channel of the log file, reopened by every checkpoint. */
+	private FileChannel channel;
+
+	/* Held shared by every change while it is made and logged, and 
+	 * exclusively while a checkpoint takes a snapshot. */
+	private final ReentrantReadWriteLock changes;
+
+	/* The bytes of records appended since the last snapshot past which a 
+	 * checkpoint is due. */
+	private final long checkpointBytes;
+
+	/* The length of the snapshot at the start of the file, 0 if none. */
+	private long snapshotEnd;
+
+	/* The records appended but not yet written to the file. */
+	private final ByteArrayOutputStream pending;
+
+	/* The sequence number of the last appended record. */
+	private long appended;
+
+	/* The sequence number of the last record known to be on disk. */
+	private long durable;
+
+	/* The length of the file up to the end of the last durable record. */
+	private long durableOffset;
+
+	/* The error of a failed sync which could not cut the file back, after 
+	 * which nothing more is written; null if none. */
+	private IOException failure;
+
+	/* Whether a thread is currently flushing the log. */
+	private boolean flushing;
+
+	/* The number of records skipped by the last replay. */
+	private int skipped;
+
+	/**
+	 * Opens a log file, creating it if it does not exist. Records are 
+	 * appended at the end of the file; call {@link #replay()} first to 
+	 * restore the state it logs and drop a torn record at its end.
+	 * @param file The log file.
+	 * @throws IOException if the file can't be opened.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public Journal(File file) throws IOException {
+		this(file, DEFAULT_CHECKPOINT_BYTES);
+	}
+
+	/**
+	 * Opens a log file, creating it if it does not exist, with a checkpoint 
+	 * due every checkpointBytes of records.
+	 * @param file The log file.
+	 * @param checkpointBytes The bytes of records appended since the last 
+	 * snapshot past which a checkpoint is due.
+	 * @throws IOException if the file can't be opened.
+	 * @throws IllegalArgumentException if file is null or checkpointBytes 
+	 * is negative.
+	 */
+	public Journal(File file, long checkpointBytes) throws IOException {
+		if(file==null||checkpointBytes < 0) throw new IllegalArgumentException();
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.changes = new ReentrantReadWriteLock();
+		this.checkpointBytes = checkpointBytes;
+		this.snapshotEnd = 0;
+		this.pending = new ByteArrayOutputStream();
+		this.appended = 0;
+		this.durable = 0;
+		this.durableOffset = this.channel.size();
+		this.failure = null;
+		this.flushing = false;
+		this.skipped = 0;
+	}
+
+	/**
+	 * Re-applies every intact record of the log, starting with the snapshot 
+	 * of the last checkpoint if any, then cuts off a torn 
+	 * record at the end of the file, if any, so new records are appended
+	 * after the intact ones. A record which doesn't fit the state replayed 
+	 * so far, such as a check-out by a user deleted before, is skipped and 
+	 * counted by {@link #getSkippedCount()}.
+	 * @return The number of records replayed, skipped ones included.
+	 * @throws IOException if the file can't be read, or holds a record of 
+	 * an unknown type or malformed fields.
+	 */
+	public synchronized int replay() throws IOException {
+		long position = 0;
+		int count = 0;
+		this.skipped = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while(true){
+			header.clear();
+			if(this.channel.read(header, position) < HEADER_SIZE) break;
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if(length < 0 || position + HEADER_SIZE + length > this.channel.size()) break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			while(payload.hasRemaining()){
+				this.channel.read(payload, position + HEADER_SIZE + payload.position());
+			}
+			CRC32 crc = new CRC32();
+			crc.update(payload.array(), 0, length);
+			if((int)crc.getValue() != checksum) break;
+			if(!apply(new DataInputStream(new ByteArrayInputStream(payload.array())))) this.skipped++;
+			position += HEADER_SIZE + length;
+			if(payload.get(0)==SNAPSHOT) this.snapshotEnd = position;
+			count++;
+		}
+		this.channel.truncate(position);
+		this.durableOffset = position;
+		return count;
+	}
+
+	/**
+	 * Returns the number of records the last replay skipped because they 
+	 * didn't fit the state replayed before them.
+	 * @return The skipped count.
+	 */
+	public synchronized int getSkippedCount() {
+		return this.skipped;
+	}
+
+	/* Applies one record the way the command that logged it did. Returns 
+	 * false, changing nothing, if the record doesn't fit the state. */
+	private boolean apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		Registry registry = Registry.shared();
+		switch(type){
+		case ADD_USER:
+			return registry.addUser(in.readUTF())!=null;
+		case DEL_USER: {
+			User user = registry.findUser(in.readUTF());
+			return user!=null && registry.delUser(user)!=null;
+		}
+		case ADD_REPO: {
+			String repoName = in.readUTF();
+			User admin = registry.findUser(in.readUTF());
+			long timestamp = in.readLong();
+			return admin!=null && registry.addRepo(repoName, admin, timestamp)!=null;
+		}
+		case DEL_REPO: {
+			Repo repo = registry.findRepo(in.readUTF());
+			return repo!=null && registry.delRepo(repo)!=null;
+		}
+		case SUBSCRIBE: {
+			String repoName = in.readUTF();
+			User user = registry.findUser(in.readUTF());
+			if(user==null || registry.findRepo(repoName)==null) return false;
+			registry.subscribe(user, repoName);
+			return true;
+		}
+		case CHECK_OUT: {
+			User user = registry.findUser(in.readUTF());
+			String repoName = in.readUTF();
+			return user!=null && user.checkOut(repoName).equals(ErrorType.SUCCESS);
+		}
+		case UPDATE: {
+			User user = registry.findUser(in.readUTF());
+			String repoName = in.readUTF();
+			return user!=null && user.update(repoName).equals(ErrorType.SUCCESS);
+		}
+		case CHANGE: {
+			User user = registry.findUser(in.readUTF());
+			String repoName = in.readUTF();
+			byte changeType = in.readByte();
+			if(changeType < 0 || changeType >= TYPES.length) throw new IOException("Bad change type " + changeType);
+			String docName = in.readUTF();
+			String content = readContent(in);
+			WorkingCopy workingCopy = user==null ? null : user.getWorkingCopy(repoName);
+			if(workingCopy==null) return false;
+			Document doc = workingCopy.getDoc(docName);
+			String baseContent = null;
+			if(TYPES[changeType].equals(Change.Type.ADD)){
+				if(doc!=null) return false;
+				doc = new Document(docName, content, repoName);
+				workingCopy.addDoc(doc);
+			}
+			else if(doc==null){
+				return false;
+			}
+			else if(TYPES[changeType].equals(Change.Type.EDIT)){
+				baseContent = doc.getContent();
+				doc = new Document(docName, content, repoName);
+				workingCopy.putDoc(doc);
+			}
+			else{
+				workingCopy.delDoc(doc);
+			}
+			user.addToPendingCheckIn(doc, TYPES[changeType], repoName, baseContent);
+			return true;
+		}
+		case CHECK_IN: {
+			User user = registry.findUser(in.readUTF());
+			String repoName = in.readUTF();
+			return user!=null && user.checkIn(repoName).equals(ErrorType.SUCCESS);
+		}
+		case TAKE: {
+			User user = registry.findUser(in.readUTF());
+			Repo repo = registry.findRepo(in.readUTF());
+			return user!=null && repo!=null && repo.getNextCheckIn(user)!=null;
+		}
+		case APPROVE: {
+			User user = registry.findUser(in.readUTF());
+			Repo repo = registry.findRepo(in.readUTF());
+			long timestamp = in.readLong();
+			ChangeSet checkIn = ChangeSet.readFrom(in);
+			if(user==null || repo==null) return false;
+			try {
+				return repo.approveCheckIn(user, checkIn, timestamp).equals(ErrorType.SUCCESS);
+			} catch (EmptyStackException e) {
+				throw new IOException(e);
+			}
+		}
+		case APPROVE_ALL: {
+			User user = registry.findUser(in.readUTF());
+			Repo repo = registry.findRepo(in.readUTF());
+			int count = in.readInt();
+			long timestamp = in.readLong();
+			// Fewer queued check-ins than approved means some were lost.
+			if(user==null || repo==null || repo.getCheckInCount() < count) return false;
+			List<ChangeSet> approved = repo.approveCheckIns(user, count, timestamp);
+			return approved!=null && approved.size()==count;
+		}
+		case REVERT: {
+			User user = registry.findUser(in.readUTF());
+			Repo repo = registry.findRepo(in.readUTF());
+			int version = in.readInt();
+			if(user==null || repo==null || repo.getVersion() <= version) return false;
+			// The history replayed may hold versions pruned before the 
+			// revert, which is undone down to the version it reached.
+			while(repo.getVersion() > version){
+				if(!repo.revert(user).equals(ErrorType.SUCCESS)) return false;
+			}
+			return repo.getVersion()==version;
+		}
+		case REVERT_TO: {
+			User user = registry.findUser(in.readUTF());
+			Repo repo = registry.findRepo(in.readUTF());
+			int version = in.readInt();
+			long timestamp = in.readLong();
+			return user!=null && repo!=null && repo.revertTo(user, version, timestamp).equals(ErrorType.SUCCESS);
+		}
+		case SNAPSHOT:
+			if(registry.getUserCount() > 0 || registry.getRepoCount() > 0){
+				throw new IOException("Journal snapshot after other records");
+			}
+			restoreState(in);
+			return true;
+		default:
+			throw new IOException("Unknown journal record type " + type);
+		}
+	}
+
+	/**
+	 * Logs the registration of a user.
+	 * @param userName The name of the user.
+	 */
+	public void addUser(String userName) {
+		append(ADD_USER, userName);
+	}
+
+	/**
+	 * Logs the de-registration of a user.
+	 * @param userName The name of the user.
+	 */
+	public void delUser(String userName) {
+		append(DEL_USER, userName);
+	}
+
+	/**
+	 * Logs the creation of a repo.
+	 * @param repoName The name of the repo.
+	 * @param adminName The name of its administrator.
+	 * @param timestamp The time its version 0 was made.
+	 */
+	public void addRepo(String repoName, String adminName, long timestamp) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(ADD_REPO);
+			out.writeUTF(repoName);
+			out.writeUTF(adminName);
+			out.writeLong(timestamp);
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Logs the deletion of a repo.
+	 * @param repoName The name of the repo.
+	 */
+	public void delRepo(String repoName) {
+		append(DEL_REPO, repoName);
+	}
+
+	/**
+	 * Logs the subscription of a user to a repo.
+	 * @param repoName The name of the repo.
+	 * @param userName The name of the subscribed user.
+	 */
+	public void subscribe(String repoName, String userName) {
+		append(SUBSCRIBE, repoName, userName);
+	}
+
+	/**
+	 * Logs the check out of a repo by a user.
+	 * @param userName The name of the user.
+	 * @param repoName The name of the repo.
+	 */
+	public void checkOut(String userName, String repoName) {
+		append(CHECK_OUT, userName, repoName);
+	}
+
+	/**
+	 * Logs the update of a working copy by a user.
+	 * @param userName The name of the user.
+	 * @param repoName The name of the repo.
+	 */
+	public void update(String userName, String repoName) {
+		append(UPDATE, userName, repoName);
+	}
+
+	/**
+	 * Logs a change made by a user to a document of a working copy.
+	 * @param userName The name of the user.
+	 * @param repoName The name of the repo.
+	 * @param type The type of the change.
+	 * @param doc The document after the change.
+	 */
+	public void change(String userName, String repoName, Change.Type type, Document doc) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(CHANGE);
+			out.writeUTF(userName);
+			out.writeUTF(repoName);
+			out.writeByte(type.ordinal());
+			out.writeUTF(doc.getName());
+			writeContent(out, doc.getContent());
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Logs the check-in of the pending changes of a user.
+	 * @param userName The name of the user.
+	 * @param repoName The name of the repo.
+	 */
+	public void checkIn(String userName, String repoName) {
+		append(CHECK_IN, userName, repoName);
+	}
+
+	/**
+	 * Logs the taking of the next queued check-in of a repo for review.
+	 * @param userName The name of the reviewing user.
+	 * @param repoName The name of the repo.
+	 */
+	public void take(String userName, String repoName) {
+		append(TAKE, userName, repoName);
+	}
+
+	/**
+	 * Logs the approval of a check-in taken for review, with its changes.
+	 * @param userName The name of the approving user.
+	 * @param repoName The name of the repo.
+	 * @param checkIn The check-in approved.
+	 * @param timestamp The time the version was made.
+	 */
+	public void approve(String userName, String repoName, ChangeSet checkIn, long timestamp) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(APPROVE);
+			out.writeUTF(userName);
+			out.writeUTF(repoName);
+			out.writeLong(timestamp);
+			checkIn.writeTo(out);
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Logs the approval of several check-ins as one version.
+	 * @param userName The name of the approving user.
+	 * @param repoName The name of the repo.
+	 * @param count The number of check-ins approved.
+	 * @param timestamp The time the version was made.
+	 */
+	public void approveCheckIns(String userName, String repoName, int count, long timestamp) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(APPROVE_ALL);
+			out.writeUTF(userName);
+			out.writeUTF(repoName);
+			out.writeInt(count);
+			out.writeLong(timestamp);
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Logs the revert of a repo.
+	 * @param userName The name of the reverting user.
+	 * @param repoName The name of the repo.
+	 * @param version The version the repo was reverted to.
+	 */
+	public void revert(String userName, String repoName, int version) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(REVERT);
+			out.writeUTF(userName);
+			out.writeUTF(repoName);
+			out.writeInt(version);
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Logs the restoring of an older version of a repo as a new version.
+	 * @param userName The name of the reverting user.
+	 * @param repoName The name of the repo.
+	 * @param version The version restored.
+	 * @param timestamp The time the new version was made.
+	 */
+	public void revertTo(String userName, String repoName, int version, long timestamp) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(REVERT_TO);
+			out.writeUTF(userName);
+			out.writeUTF(repoName);
+			out.writeInt(version);
+			out.writeLong(timestamp);
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* Appends a record made of a type and string fields. */
+	private void append(byte type, String... fields) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(type);
+			for(String field : fields){
+				out.writeUTF(field);
+			}
+			end(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* Frames a finished record and adds it to the pending records. */
+	private void end(ByteArrayOutputStream record) throws IOException {
+		byte[] framed = frame(record);
+		synchronized(this){
+			this.pending.write(framed, 0, framed.length);
+			this.appended++;
+		}
+	}
+
+	/* Returns a finished record preceded by its length and checksum. */
+	private static byte[] frame(ByteArrayOutputStream record) throws IOException {
+		byte[] payload = record.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+		DataOutputStream framed = new DataOutputStream(bytes);
+		framed.writeInt(payload.length);
+		framed.writeInt((int)crc.getValue());
+		framed.write(payload);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Makes every record appended so far durable. If another thread is
+	 * already flushing, waits for it and flushes whatever it did not cover,
+	 * so a burst of appends from many threads costs few flushes. If the 
+	 * records can't be written, they are kept to be written by the next 
+	 * sync, and the file is cut back to its last durable record.
+	 * @throws IOException if the log can't be written, or was left in an 
+	 * unknown state by an earlier failure.
+	 */
+	public void sync() throws IOException {
+		long target;
+		byte[] batch;
+		long batchEnd;
+		long offset;
+		FileChannel channel;
+		synchronized(this){
+			target = this.appended;
+			while(this.durable < target && this.flushing){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+			if(this.durable >= target) return;
+			if(this.failure!=null) throw new IOException("Journal failed", this.failure);
+			this.flushing = true;
+			batch = this.pending.toByteArray();
+			this.pending.reset();
+			batchEnd = this.appended;
+			offset = this.durableOffset;
+			channel = this.channel;
+		}
+		boolean written = false;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while(buffer.hasRemaining()){
+				channel.write(buffer, offset + buffer.position());
+			}
+			channel.force(false);
+			written = true;
+		} finally {
+			// Whatever part of a failed batch was written is cut off.
+			boolean cut = written || truncate(channel, offset);
+			synchronized(this){
+				this.flushing = false;
+				if(written){
+					this.durable = batchEnd;
+					this.durableOffset = offset + batch.length;
+				}
+				else{
+					// The batch goes back ahead of the records appended since.
+					byte[] later = this.pending.toByteArray();
+					this.pending.reset();
+					this.pending.write(batch, 0, batch.length);
+					this.pending.write(later, 0, later.length);
+					if(!cut) this.failure = new IOException("Journal not cut back to " + offset);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/* Cuts the file back to an offset; returns false if it can't. */
+	private static boolean truncate(FileChannel channel, long offset) {
+		try {
+			channel.truncate(offset);
+			return channel.size()==offset;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the lock every change must hold, before any other lock, while 
+	 * it is made and logged. Checkpoints wait for it.
+	 * @return The shared side of the change lock.
+	 */
+	public Lock getChangeLock() {
+		return this.changes.readLock();
+	}
+
+	/**
+	 * Returns whether the records appended since the last snapshot take 
+	 * more bytes than the checkpoint threshold and than the snapshot itself. 
+	 * Every checkpoint rewrites the whole state, so it waits for a tail as 
+	 * long as the state it rewrites, keeping the bytes written per byte 
+	 * logged bounded however large the state grows.
+	 * @return True if a checkpoint is due.
+	 */
+	public synchronized boolean isCheckpointDue() {
+		long tail = this.durableOffset + this.pending.size() - this.snapshotEnd;
+		return tail > Math.max(this.checkpointBytes, this.snapshotEnd);
+	}
+
+	/**
+	 * Replaces the log with a snapshot of the current state, which covers 
+	 * every record appended so far, durable or not. The snapshot is written 
+	 * to a new file which is then renamed over the log, so a crash leaves 
+	 * either the old log or the snapshot. Changes wait while the snapshot 
+	 * is taken. Does nothing if no record was appended since the last one.
+	 * @throws IOException if the snapshot can't be written, in which case 
+	 * the log is left as it was, or the log can't be reopened after it.
+	 */
+	public void checkpoint() throws IOException {
+		Lock lock = this.changes.writeLock();
+		lock.lock();
+		try {
+			synchronized(this){
+				if(this.durableOffset + this.pending.size()==this.snapshotEnd) return;
+				if(this.failure!=null) throw new IOException("Journal failed", this.failure);
+			}
+			// Written without the journal's lock, so syncs go on meanwhile.
+			File tmp = new File(this.file.getPath() + ".tmp");
+			long length = writeSnapshot(tmp);
+			synchronized(this){
+				while(this.flushing){
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						tmp.delete();
+						throw new IOException(e);
+					}
+				}
+				if(this.failure!=null){
+					tmp.delete();
+					throw new IOException("Journal failed", this.failure);
+				}
+				try {
+					Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					tmp.delete();
+					throw e;
+				}
+				try {
+					forceDirectory(this.file.getAbsoluteFile().getParentFile());
+					this.channel.close();
+					this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ,
+							StandardOpenOption.WRITE);
+				} catch (IOException e) {
+					// The records appended since may not follow the snapshot.
+					this.failure = e;
+					throw e;
+				}
+				// The snapshot covers the records not written yet.
+				this.pending.reset();
+				this.durable = this.appended;
+				this.durableOffset = length;
+				this.snapshotEnd = length;
+				notifyAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Writes a snapshot record of the state to a new file and forces it to 
+	 * disk; returns its length. The state is streamed into the file and its 
+	 * checksum computed on the way, so it is never held in memory whole. 
+	 * The file is deleted if it can't be written. */
+	private static long writeSnapshot(File tmp) throws IOException {
+		FileChannel written = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		boolean done = false;
+		try {
+			written.position(HEADER_SIZE);
+			CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(written), new CRC32());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, SNAPSHOT_BUFFER_SIZE));
+			out.writeByte(SNAPSHOT);
+			writeState(out);
+			out.flush();
+			long length = written.position() - HEADER_SIZE;
+			if(length > Integer.MAX_VALUE - HEADER_SIZE) throw new IOException("Journal snapshot too large");
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt((int)length);
+			header.putInt((int)checked.getChecksum().getValue());
+			header.flip();
+			while(header.hasRemaining()){
+				written.write(header, header.position());
+			}
+			written.force(true);
+			done = true;
+			return HEADER_SIZE + length;
+		} finally {
+			written.close();
+			if(!done) tmp.delete();
+		}
+	}
+
+	/* Makes the renaming of the log durable. Where a directory can't be 
+	 * opened, as on Windows, there is nothing to force. */
+	private static void forceDirectory(File dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/* Writes the users with their subscriptions, the repos with their 
+	 * history and queued check-ins, then the working copies and pending 
+	 * check-ins of every user. Every version is written as the documents it 
+	 * changed, with its history entry. The caller holds the change lock 
+	 * exclusively. */
+	private static void writeState(DataOutputStream out) throws IOException {
+		Registry registry = Registry.shared();
+		List<User> users = registry.getUsers();
+		out.writeInt(users.size());
+		for(User user : users){
+			out.writeUTF(user.getName());
+			List<String> subscribed = user.getAllSubRepos();
+			out.writeInt(subscribed.size());
+			for(String repoName : subscribed){
+				out.writeUTF(repoName);
+			}
+		}
+		List<Repo> repos = registry.getRepos();
+		out.writeInt(repos.size());
+		for(Repo repo : repos){
+			// The history collector may be pruning it meanwhile.
+			Lock lock = RepoLocks.forRepo(repo.getName()).writeLock();
+			lock.lock();
+			try {
+				out.writeUTF(repo.getName());
+				out.writeUTF(repo.getAdmin().getName());
+				List<RepoSnapshot> versions = repo.getVersions();
+				out.writeInt(versions.size());
+				PersistentDocMap previous = PersistentDocMap.EMPTY;
+				for(RepoSnapshot version : versions){
+					writeEntry(out, version.getEntry());
+					writeDocs(out, previous.changesTo(version.getDocHashes()), version);
+					previous = version.getDocHashes();
+				}
+				List<ChangeSet> queued = repo.getQueuedCheckIns();
+				out.writeInt(queued.size());
+				for(ChangeSet checkIn : queued){
+					checkIn.writeTo(out);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		for(User user : users){
+			Map<String, WorkingCopy> workingCopies = user.getWorkingCopies();
+			Map<String, ChangeSet> pendingCheckIns = user.getPendingCheckIns();
+			Map<String, Boolean> repoNames = new LinkedHashMap<String, Boolean>();
+			for(String repoName : workingCopies.keySet()){
+				repoNames.put(repoName, Boolean.TRUE);
+			}
+			for(String repoName : pendingCheckIns.keySet()){
+				repoNames.put(repoName, Boolean.TRUE);
+			}
+			out.writeInt(repoNames.size());
+			for(String repoName : repoNames.keySet()){
+				out.writeUTF(repoName);
+				WorkingCopy workingCopy = workingCopies.get(repoName);
+				out.writeBoolean(workingCopy!=null);
+				if(workingCopy!=null) writeWorkingCopy(out, workingCopy);
+				ChangeSet pending = pendingCheckIns.get(repoName);
+				out.writeBoolean(pending!=null);
+				if(pending!=null) pending.writeTo(out);
+			}
+		}
+	}
+
+	/* Restores the state written by writeState into an empty registry. */
+	private static void restoreState(DataInputStream in) throws IOException {
+		Registry registry = Registry.shared();
+		int userCount = readCount(in);
+		List<User> users = new ArrayList<User>(userCount);
+		for(int i = 0; i < userCount; i++){
+			User user = registry.addUser(in.readUTF());
+			if(user==null) throw new IOException("Duplicate user in journal snapshot");
+			users.add(user);
+			// Subscribed before the repos are added, in the order logged.
+			for(int j = readCount(in); j > 0; j--){
+				registry.subscribe(user, in.readUTF());
+			}
+		}
+		for(int i = readCount(in); i > 0; i--){
+			String repoName = in.readUTF();
+			User admin = registry.findUser(in.readUTF());
+			int versionCount = readCount(in);
+			List<HistoryEntry> entries = new ArrayList<HistoryEntry>(versionCount);
+			List<Map<String, String>> changes = new ArrayList<Map<String, String>>(versionCount);
+			for(int j = 0; j < versionCount; j++){
+				entries.add(readEntry(in));
+				changes.add(readDocs(in));
+			}
+			if(admin==null || versionCount==0) throw new IOException("Bad repo " + repoName + " in journal snapshot");
+			Repo repo = registry.addRepo(repoName, admin, entries.get(0).getTimestamp());
+			if(repo==null) throw new IOException("Duplicate repo " + repoName + " in journal snapshot");
+			repo.restoreHistory(changes, entries);
+			for(int j = readCount(in); j > 0; j--){
+				if(!repo.queueCheckIn(ChangeSet.readFrom(in))) throw new IOException("Too many check-ins queued");
+			}
+		}
+		for(User user : users){
+			for(int i = readCount(in); i > 0; i--){
+				String repoName = in.readUTF();
+				WorkingCopy workingCopy = in.readBoolean() ? readWorkingCopy(in, repoName) : null;
+				ChangeSet pending = in.readBoolean() ? ChangeSet.readFrom(in) : null;
+				user.restore(repoName, workingCopy, pending);
+			}
+		}
+	}
+
+	/* Writes a working copy: its base, as a version of the history if it is 
+	 * one and in full otherwise, then its local changes. */
+	private static void writeWorkingCopy(DataOutputStream out, WorkingCopy workingCopy) throws IOException {
+		RepoSnapshot base = workingCopy.getBase();
+		Repo repo = Registry.shared().findRepo(base.getRepoName());
+		boolean inHistory = repo!=null && repo.getSnapshot(base.getVersion())==base;
+		out.writeBoolean(inHistory);
+		if(inHistory) out.writeInt(base.getVersion());
+		else{
+			writeEntry(out, base.getEntry());
+			writeDocs(out, PersistentDocMap.EMPTY.changesTo(base.getDocHashes()), base);
+		}
+		Map<String, Document> local = workingCopy.getLocalChanges();
+		Set<String> checkedIn = workingCopy.getCheckedIn();
+		out.writeInt(local.size());
+		for(Map.Entry<String, Document> e : local.entrySet()){
+			out.writeUTF(e.getKey());
+			out.writeBoolean(checkedIn.contains(e.getKey()));
+			out.writeBoolean(e.getValue()!=null);
+			if(e.getValue()!=null) writeContent(out, e.getValue().getContent());
+		}
+		List<String> conflicts = workingCopy.getConflicts();
+		out.writeInt(conflicts.size());
+		for(String conflict : conflicts){
+			out.writeUTF(conflict);
+		}
+		out.writeInt(workingCopy.getUpdatedCount());
+	}
+
+	/* Reads a working copy written by writeWorkingCopy. */
+	private static WorkingCopy readWorkingCopy(DataInputStream in, String repoName) throws IOException {
+		RepoSnapshot base;
+		if(in.readBoolean()){
+			Repo repo = Registry.shared().findRepo(repoName);
+			base = repo==null ? null : repo.getSnapshot(in.readInt());
+			if(base==null) throw new IOException("Working copy of a missing version of " + repoName);
+		}
+		else{
+			// A version reverted or pruned since it was checked out.
+			HistoryEntry entry = readEntry(in);
+			BlobStore blobs = new BlobStore();
+			PersistentDocMap docs = PersistentDocMap.EMPTY;
+			for(Map.Entry<String, String> e : readDocs(in).entrySet()){
+				if(e.getValue()!=null) docs = docs.put(e.getKey(), blobs.put(e.getValue()));
+			}
+			base = new RepoSnapshot(repoName, entry.getVersion(), docs, null, blobs, entry);
+		}
+		Map<String, Document> local = new HashMap<String, Document>();
+		Set<String> checkedIn = new HashSet<String>();
+		for(int i = readCount(in); i > 0; i--){
+			String docName = in.readUTF();
+			if(in.readBoolean()) checkedIn.add(docName);
+			local.put(docName, in.readBoolean() ? new Document(docName, readContent(in), repoName) : null);
+		}
+		int conflictCount = readCount(in);
+		List<String> conflicts = new ArrayList<String>(conflictCount);
+		for(int i = 0; i < conflictCount; i++){
+			conflicts.add(in.readUTF());
+		}
+		return new WorkingCopy(base, local, checkedIn, conflicts, in.readInt());
+	}
+
+	/* Writes the fields of a history entry. */
+	private static void writeEntry(DataOutputStream out, HistoryEntry entry) throws IOException {
+		out.writeInt(entry.getVersion());
+		out.writeUTF(entry.getCommitter());
+		writeNames(out, entry.getAuthors());
+		out.writeInt(entry.getChangeCount());
+		writeNames(out, entry.getTouchedDocs());
+		out.writeLong(entry.getTimestamp());
+	}
+
+	/* Reads a history entry written by writeEntry. */
+	private static HistoryEntry readEntry(DataInputStream in) throws IOException {
+		int version = in.readInt();
+		String committer = in.readUTF();
+		List<String> authors = readNames(in);
+		int changeCount = in.readInt();
+		List<String> touched = readNames(in);
+		return new HistoryEntry(version, committer, authors, changeCount, touched, in.readLong());
+	}
+
+	/* Writes the documents of a snapshot which changed, by name, with the 
+	 * content they have in the snapshot, or none for the ones removed. */
+	private static void writeDocs(DataOutputStream out, Map<String, String> changes, RepoSnapshot snapshot)
+			throws IOException {
+		out.writeInt(changes.size());
+		for(Map.Entry<String, String> e : changes.entrySet()){
+			out.writeUTF(e.getKey());
+			out.writeBoolean(e.getValue()!=null);
+			if(e.getValue()!=null) writeContent(out, snapshot.getDocument(e.getKey()).getContent());
+		}
+	}
+
+	/* Reads the documents written by writeDocs: their contents by name, 
+	 * null for the ones removed. */
+	private static Map<String, String> readDocs(DataInputStream in) throws IOException {
+		Map<String, String> docs = new LinkedHashMap<String, String>();
+		for(int i = readCount(in); i > 0; i--){
+			String docName = in.readUTF();
+			docs.put(docName, in.readBoolean() ? readContent(in) : null);
+		}
+		return docs;
+	}
+
+	/* Writes a list of names. */
+	private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+		out.writeInt(names.size());
+		for(String name : names){
+			out.writeUTF(name);
+		}
+	}
+
+	/* Reads a list of names written by writeNames. */
+	private static List<String> readNames(DataInputStream in) throws IOException {
+		int count = readCount(in);
+		List<String> names = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++){
+			names.add(in.readUTF());
+		}
+		return names;
+	}
+
+	/* Reads a count, which must not be negative. */
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if(count < 0) throw new IOException("Bad count " + count);
+		return count;
+	}
+
+	/**
+	 * Flushes the pending records and closes the log.
+	 * @throws IOException if the log can't be written.
+	 */
+	public void close() throws IOException {
+		sync();
+		this.channel.close();
+	}
+
+	/* Writes a content which may be longer than writeUTF allows. */
+	private static void writeContent(DataOutputStream out, String content) throws IOException {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/* Reads a content written by writeContent. */
+	private static String readContent(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * Finds the longest common subsequence of two sequences of line ids, using
+ * Myers' O(ND) difference algorithm in its linear space form: the middle
+ * snake of the shortest edit script is found by searching from both ends,
+ * and the two halves around it are compared in turn. Apart from the result,
+ * a comparison allocates two arrays, whatever the number of differences.
+ * Lines are compared as ints, so texts must be turned into ids first, with
+ * equal lines getting equal ids.
+ * @author
+ *
+ */
+public final class LineDiff {
+
+	/* The lines of the older sequence. */
+	private final int[] a;
+
+	/* The lines of the newer sequence. */
+	private final int[] b;
+
+	/* For every line of a, the index of its matching line of b, or -1. */
+	private final int[] matches;
+
+	/* The furthest x reached on every diagonal searching forward. */
+	private final int[] forward;
+
+	/* The furthest x reached on every diagonal searching backward. */
+	private final int[] backward;
+
+	/* The index of diagonal 0 in the two arrays above. */
+	private final int offset;
+
+	/* The bounds of the middle snake of the last search. */
+	private int snakeStartX, snakeStartY, snakeEndX, snakeEndY;
+
+	private LineDiff(int[] a, int[] b) {
+		this.a = a;
+		this.b = b;
+		this.matches = new int[a.length];
+		Arrays.fill(this.matches, -1);
+		this.offset = (a.length + b.length) / 2 + 2;
+		this.forward = new int[2 * this.offset + 1];
+		this.backward = new int[2 * this.offset + 1];
+	}
+
+	/**
+	 * Matches the lines of two sequences along one of their longest common
+	 * subsequences. The matches are increasing: matched lines keep their
+	 * order in both sequences.
+	 * @param a The lines of the older sequence.
+	 * @param b The lines of the newer sequence.
+	 * @return For every line of a, the index of the equal line of b it is
+	 * matched with, or -1 if it was removed.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static int[] match(int[] a, int[] b) {
+		if(a==null||b==null) throw new IllegalArgumentException();
+		LineDiff diff = new LineDiff(a, b);
+		diff.compare(0, a.length, 0, b.length);
+		return diff.matches;
+	}
+
+	/* Matches the lines of a[aLo, aHi) with the lines of b[bLo, bHi). */
+	private void compare(int aLo, int aHi, int bLo, int bHi) {
+		while(aLo < aHi && bLo < bHi && this.a[aLo]==this.b[bLo]){
+			this.matches[aLo++] = bLo++;
+		}
+		while(aLo < aHi && bLo < bHi && this.a[aHi-1]==this.b[bHi-1]){
+			this.matches[--aHi] = --bHi;
+		}
+		if(aLo==aHi || bLo==bHi) return;
+		middleSnake(aLo, aHi, bLo, bHi);
+		int startX = aLo + this.snakeStartX, startY = bLo + this.snakeStartY;
+		int endX = aLo + this.snakeEndX, endY = bLo + this.snakeEndY;
+		compare(aLo, startX, bLo, startY);
+		for(int x = startX, y = startY; x < endX; x++, y++){
+			this.matches[x] = y;
+		}
+		compare(endX, aHi, endY, bHi);
+	}
+
+	/* Finds the snake in the middle of a shortest edit script turning
+	 * a[aLo, aHi) into b[bLo, bHi); its bounds are relative to (aLo, bLo).
+	 * The backward search runs on the reversed sequences, where diagonal k
+	 * is the forward diagonal delta - k. */
+	private void middleSnake(int aLo, int aHi, int bLo, int bHi) {
+		int n = aHi - aLo, m = bHi - bLo;
+		int delta = n - m;
+		boolean odd = (delta & 1)!=0;
+		int[] vf = this.forward, vb = this.backward;
+		int off = this.offset;
+		vf[off+1] = 0;
+		vb[off+1] = 0;
+		int maxD = (n + m + 1) / 2;
+		for(int d = 0; d <= maxD; d++){
+			for(int k = -d; k <= d; k += 2){
+				int x = (k==-d || (k!=d && vf[off+k-1] < vf[off+k+1])) ? vf[off+k+1] : vf[off+k-1] + 1;
+				int y = x - k;
+				int x0 = x, y0 = y;
+				while(x < n && y < m && this.a[aLo+x]==this.b[bLo+y]){
+					x++;
+					y++;
+				}
+				vf[off+k] = x;
+				int kb = delta - k;
+				if(odd && kb >= -(d-1) && kb <= d-1 && x + vb[off+kb] >= n){
+					setSnake(x0, y0, x, y);
+					return;
+				}
+			}
+			for(int k = -d; k <= d; k += 2){
+				int x = (k==-d || (k!=d && vb[off+k-1] < vb[off+k+1])) ? vb[off+k+1] : vb[off+k-1] + 1;
+				int y = x - k;
+				int x0 = x, y0 = y;
+				while(x < n && y < m && this.a[aHi-1-x]==this.b[bHi-1-y]){
+					x++;
+					y++;
+				}
+				vb[off+k] = x;
+				int kf = delta - k;
+				if(!odd && kf >= -d && kf <= d && x + vf[off+kf] >= n){
+					setSnake(n - x, m - y, n - x0, m - y0);
+					return;
+				}
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	private void setSnake(int startX, int startY, int endX, int endY) {
+		this.snakeStartX = startX;
+		this.snakeStartY = startY;
+		this.snakeEndX = endX;
+		this.snakeEndY = endY;
+	}
+}
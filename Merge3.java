@@ -0,0 +1,213 @@
+import java.util.Arrays;
+
+/**
+ * Line based three-way merge of two versions of a document derived from a
+ * common base. Both versions are diffed against the base; the hunks only
+ * one side changed, or both changed the same way, are merged, and the
+ * hunks both sides changed differently are conflicts, kept between markers
+ * with the lines of both sides.
+ * @author
+ *
+ */
+public final class Merge3 {
+
+	/* The marker opening a conflict, before the lines of the head. */
+	public static final String HEAD_MARKER = "<<<<<<< head\n";
+
+	/* The marker between the lines of the head and of the check-in. */
+	public static final String SEPARATOR_MARKER = "=======\n";
+
+	/* The marker closing a conflict, after the lines of the check-in. */
+	public static final String CHECK_IN_MARKER = ">>>>>>> check-in\n";
+
+	/* The merged content. */
+	private final String content;
+
+	/* The number of conflicting hunks in the merged content. */
+	private final int conflictCount;
+
+	private Merge3(String content, int conflictCount) {
+		this.content = content;
+		this.conflictCount = conflictCount;
+	}
+
+	/**
+	 * Merges the changes made to a base in the head and in a check-in.
+	 * @param base The content both versions were derived from.
+	 * @param head The content of the current version.
+	 * @param checkIn The content being checked in.
+	 * @return The result of the merge.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static Merge3 merge(String base, String head, String checkIn) {
+		if(base==null||head==null||checkIn==null) throw new IllegalArgumentException();
+		if(base.equals(head) || head.equals(checkIn)) return new Merge3(checkIn, 0);
+		if(base.equals(checkIn)) return new Merge3(head, 0);
+
+		int baseCount = countLines(base), headCount = countLines(head), checkInCount = countLines(checkIn);
+		Lines lines = new Lines(baseCount + headCount + checkInCount);
+		int[] o = lines.toIds(base, baseCount);
+		int[] a = lines.toIds(head, headCount);
+		int[] b = lines.toIds(checkIn, checkInCount);
+		int[] matchA = LineDiff.match(o, a);
+		int[] matchB = LineDiff.match(o, b);
+
+		StringBuilder merged = new StringBuilder(Math.max(head.length(), checkIn.length()));
+		int conflicts = 0;
+		int i = 0, j = 0, k = 0;
+		while(i < o.length || j < a.length || k < b.length){
+			// Copy the lines all three agree on.
+			while(i < o.length && matchA[i]==j && matchB[i]==k){
+				lines.append(merged, o[i]);
+				i++;
+				j++;
+				k++;
+			}
+			// The hunk runs up to the next base line both sides kept.
+			int iEnd = i;
+			while(iEnd < o.length && (matchA[iEnd] < 0 || matchB[iEnd] < 0)) iEnd++;
+			int jEnd = iEnd < o.length ? matchA[iEnd] : a.length;
+			int kEnd = iEnd < o.length ? matchB[iEnd] : b.length;
+			if(same(o, i, iEnd, a, j, jEnd)){
+				append(merged, lines, b, k, kEnd);
+			}
+			else if(same(o, i, iEnd, b, k, kEnd) || same(a, j, jEnd, b, k, kEnd)){
+				append(merged, lines, a, j, jEnd);
+			}
+			else{
+				conflicts++;
+				if(merged.length() > 0 && merged.charAt(merged.length()-1)!='\n') merged.append('\n');
+				merged.append(HEAD_MARKER);
+				append(merged, lines, a, j, jEnd);
+				if(merged.charAt(merged.length()-1)!='\n') merged.append('\n');
+				merged.append(SEPARATOR_MARKER);
+				append(merged, lines, b, k, kEnd);
+				if(merged.charAt(merged.length()-1)!='\n') merged.append('\n');
+				merged.append(CHECK_IN_MARKER);
+			}
+			i = iEnd;
+			j = jEnd;
+			k = kEnd;
+		}
+		return new Merge3(merged.toString(), conflicts);
+	}
+
+	/**
+	 * Returns the merged content. Conflicting hunks are kept between
+	 * markers, with the lines of the head first.
+	 * @return The merged content.
+	 */
+	public String getContent() {
+		return this.content;
+	}
+
+	/**
+	 * Returns the number of hunks both sides changed differently.
+	 * @return The conflict count.
+	 */
+	public int getConflictCount() {
+		return this.conflictCount;
+	}
+
+	/**
+	 * Checks if the merge had any conflict.
+	 * @return True if a hunk conflicts, false otherwise.
+	 */
+	public boolean hasConflicts() {
+		return this.conflictCount > 0;
+	}
+
+	/* Returns the number of lines of a content; the last one may lack its
+	 * newline. */
+	private static int countLines(String content) {
+		int count = 0;
+		for(int p = 0; p < content.length(); p++){
+			if(content.charAt(p)=='\n') count++;
+		}
+		if(content.length() > 0 && content.charAt(content.length()-1)!='\n') count++;
+		return count;
+	}
+
+	/* Checks if x[xLo, xHi) and y[yLo, yHi) hold the same lines. */
+	private static boolean same(int[] x, int xLo, int xHi, int[] y, int yLo, int yHi) {
+		if(xHi - xLo != yHi - yLo) return false;
+		for(int p = 0; p < xHi - xLo; p++){
+			if(x[xLo+p]!=y[yLo+p]) return false;
+		}
+		return true;
+	}
+
+	/* Appends the lines of ids[lo, hi). */
+	private static void append(StringBuilder merged, Lines lines, int[] ids, int lo, int hi) {
+		for(int p = lo; p < hi; p++){
+			lines.append(merged, ids[p]);
+		}
+	}
+
+	/**
+	 * Gives ids to the distinct lines of the merged contents. Lines are
+	 * kept as ranges of the contents and looked up in an open addressing
+	 * table, so no line is copied into a String of its own.
+	 */
+	private static final class Lines {
+		private final int[] table;
+		private final String[] sources;
+		private final int[] starts;
+		private final int[] ends;
+		private final int[] hashes;
+		private int size;
+
+		private Lines(int capacity) {
+			int tableSize = Integer.highestOneBit(Math.max(capacity, 1) * 2 + 1) << 1;
+			this.table = new int[tableSize];
+			Arrays.fill(this.table, -1);
+			this.sources = new String[capacity];
+			this.starts = new int[capacity];
+			this.ends = new int[capacity];
+			this.hashes = new int[capacity];
+			this.size = 0;
+		}
+
+		/* Splits a content into lines, newline included, and returns their
+		 * ids; equal lines get equal ids. */
+		int[] toIds(String content, int count) {
+			int[] ids = new int[count];
+			int start = 0;
+			for(int n = 0; n < count; n++){
+				int end = content.indexOf('\n', start);
+				end = end < 0 ? content.length() : end + 1;
+				ids[n] = intern(content, start, end);
+				start = end;
+			}
+			return ids;
+		}
+
+		private int intern(String content, int start, int end) {
+			int hash = 0;
+			for(int p = start; p < end; p++){
+				hash = 31*hash + content.charAt(p);
+			}
+			int mask = this.table.length - 1;
+			for(int slot = (hash ^ (hash >>> 16)) & mask; ; slot = (slot + 1) & mask){
+				int id = this.table[slot];
+				if(id < 0){
+					id = this.size++;
+					this.sources[id] = content;
+					this.starts[id] = start;
+					this.ends[id] = end;
+					this.hashes[id] = hash;
+					this.table[slot] = id;
+					return id;
+				}
+				if(this.hashes[id]==hash && this.ends[id] - this.starts[id]==end - start
+						&& content.regionMatches(start, this.sources[id], this.starts[id], end - start)){
+					return id;
+				}
+			}
+		}
+
+		void append(StringBuilder merged, int id) {
+			merged.append(this.sources[id], this.starts[id], this.ends[id]);
+		}
+	}
+}
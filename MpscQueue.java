@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free queue for many producers and a single consumer. Producers
+ * link new nodes by swapping the tail; only the consumer moves the head, so
+ * enqueue never blocks and dequeue never contends with other dequeues. The
+ * queue may be bounded, in which case {@link #offer(Object)} reports when it
+ * is full so producers can back off.
+ * Only one thread at a time may call dequeue or peek.
+ * @author
+ *
+ */
+public class MpscQueue<E> implements QueueADT<E> {
+
+	/* The node before the first item. Only the consumer reads or moves it. */
+	private Node<E> head;
+
+	/* The last node. Producers swap themselves in here. */
+	private final AtomicReference<Node<E>> tail;
+
+	/* The number of items ever added, counting the ones still being linked. */
+	private final AtomicLong enqueued;
+
+	/* The number of items ever removed. Only the consumer writes it. */
+	private volatile long dequeued;
+
+	/* The largest number of items the queue holds. */
+	private final int capacity;
+
+	/**
+	 * Constructs an unbounded queue.
+	 */
+	public MpscQueue() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Constructs a bounded queue.
+	 * @param capacity The largest number of items the queue holds.
+	 * @throws IllegalArgumentException if capacity is not positive.
+	 */
+	public MpscQueue(int capacity) {
+		if(capacity <= 0) throw new IllegalArgumentException();
+		Node<E> stub = new Node<E>(null);
+		this.head = stub;
+		this.tail = new AtomicReference<Node<E>>(stub);
+		this.enqueued = new AtomicLong(0);
+		this.dequeued = 0;
+		this.capacity = capacity;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size()==0;
+	}
+
+	/**
+	 * Adds an item at the end of the queue if there is room for it.
+	 * @param item The item to add.
+	 * @return True if the item was added, false if the queue is full.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public boolean offer(E item) {
+		if(item==null) throw new IllegalArgumentException();
+		if(this.capacity==Integer.MAX_VALUE){
+			this.enqueued.getAndIncrement();
+		}
+		else{
+			long count;
+			do {
+				count = this.enqueued.get();
+				if(count - this.dequeued >= this.capacity) return false;
+			} while(!this.enqueued.compareAndSet(count, count+1));
+		}
+		Node<E> node = new Node<E>(item);
+		Node<E> previous = this.tail.getAndSet(node);
+		previous.next = node;
+		return true;
+	}
+
+	/**
+	 * Adds an item at the end of the queue.
+	 * @param item The item to add.
+	 * @throws IllegalStateException if the queue is full.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	@Override
+	public void enqueue(E item) {
+		if(!offer(item)) throw new IllegalStateException("Queue full");
+	}
+
+	@Override
+	public E dequeue() throws EmptyQueueException {
+		E item = poll();
+		if(item==null) throw new EmptyQueueException();
+		return item;
+	}
+
+	/**
+	 * Removes and returns the first item of the queue, if any.
+	 * @return The first item, or null if the queue is empty.
+	 */
+	public E poll() {
+		if(isEmpty()) return null;
+		Node<E> next;
+		// Counted items are linked shortly, so the wait is bounded.
+		while((next = this.head.next)==null){
+			Thread.yield();
+		}
+		E item = next.item;
+		next.item = null;
+		this.head = next;
+		this.dequeued++;
+		return item;
+	}
+
+	@Override
+	public E peek() throws EmptyQueueException {
+		return first().item;
+	}
+
+	/* Returns the node of the first item, waiting for a producer which has
+	 * counted its item but not linked it yet. */
+	private Node<E> first() throws EmptyQueueException {
+		Node<E> next = this.head.next;
+		if(next!=null) return next;
+		if(isEmpty()) throw new EmptyQueueException();
+		while((next = this.head.next)==null){
+			Thread.yield();
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the items of the queue in order, without removing them. Only 
+	 * the consumer may call it.
+	 * @return A new list of the items.
+	 */
+	public List<E> toList() {
+		List<E> items = new ArrayList<E>(size());
+		Node<E> n = this.head;
+		for(int i = size(); i > 0; i--){
+			Node<E> next;
+			while((next = n.next)==null){
+				Thread.yield();
+			}
+			items.add(next.item);
+			n = next;
+		}
+		return items;
+	}
+
+	@Override
+	public int size() {
+		return (int)Math.min(this.enqueued.get() - this.dequeued, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns how many more items the queue takes before it is full.
+	 * @return The remaining capacity.
+	 */
+	public int remainingCapacity() {
+		return this.capacity - size();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder items = new StringBuilder();
+		for(Node<E> n = this.head.next; n != null; n = n.next){
+			if(n.item != null) items.append(n.item.toString()).append("\n");
+		}
+		return items.toString();
+	}
+
+	/**
+	 * A link of the queue.
+	 */
+	private static final class Node<E> {
+		private E item;
+		private volatile Node<E> next;
+
+		private Node(E item) {
+			this.item = item;
+		}
+	}
+}
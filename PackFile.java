@@ -0,0 +1,200 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+
+/**
+ * A read-only segment file holding document contents outside the Java heap.
+ * The file is laid out as a header, the contents one after the other, an
+ * index of fixed size entries sorted by content hash, and the position of
+ * the index. It is read through a memory mapping, so looking a content up
+ * and reading its bytes never copies them onto the heap.
+ * @author
+ *
+ */
+public class PackFile {
+
+	/* Marks the start of every pack file. */
+	private static final int MAGIC = 0x56435350;
+
+	/* The size of a content hash in bytes. */
+	private static final int HASH_SIZE = 20;
+
+	/* The size of an index entry: hash, content offset and content length. */
+	private static final int ENTRY_SIZE = HASH_SIZE + 8 + 4;
+
+	/* The file the pack is stored in. */
+	private final File file;
+
+	/* The mapping of the whole file. */
+	private final MappedByteBuffer map;
+
+	/* The number of contents in the pack. */
+	private final int count;
+
+	/* The position of the first index entry. */
+	private final int indexOffset;
+
+	/**
+	 * Opens an existing pack file.
+	 * @param file The pack file.
+	 * @throws IOException if the file can't be read or is not a pack file.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public PackFile(File file) throws IOException {
+		if(file==null) throw new IllegalArgumentException();
+		this.file = file;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		if(this.map.capacity() < 16 || this.map.getInt(0) != MAGIC){
+			throw new IOException("Not a pack file: " + file);
+		}
+		this.count = this.map.getInt(4);
+		this.indexOffset = (int)this.map.getLong(this.map.capacity() - 8);
+	}
+
+	/**
+	 * Writes the contents of a map into a new pack file. A pack file is
+	 * mapped as a whole, so the contents must add up to less than 2 GB.
+	 * @param file The file to write.
+	 * @param contents The contents to pack, keyed and sorted by their hash.
+	 * @return The pack file, opened.
+	 * @throws IOException if the file can't be written.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static PackFile write(File file, SortedMap<String, String> contents) throws IOException {
+		if(file==null||contents==null) throw new IllegalArgumentException();
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeInt(contents.size());
+			long[] offsets = new long[contents.size()];
+			int[] lengths = new int[contents.size()];
+			int i = 0;
+			for(String content : contents.values()){
+				byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+				offsets[i] = out.size();
+				lengths[i] = bytes.length;
+				out.write(bytes);
+				i++;
+			}
+			long indexOffset = out.size();
+			i = 0;
+			for(String hash : contents.keySet()){
+				out.write(toBytes(hash));
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+				i++;
+			}
+			out.writeLong(indexOffset);
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		return new PackFile(file);
+	}
+
+	/**
+	 * Returns the file the pack is stored in.
+	 * @return The pack file.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Returns the number of contents in the pack.
+	 * @return The content count.
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * Checks if a content is stored in the pack.
+	 * @param hash The hash of the content.
+	 * @return True if the content is present, false otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public boolean contains(String hash) {
+		return find(hash) >= 0;
+	}
+
+	/**
+	 * Returns the bytes of a content as a read-only view of the mapping.
+	 * @param hash The hash of the content.
+	 * @return The UTF-8 bytes of the content if present, null otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public ByteBuffer getBytes(String hash) {
+		int entry = find(hash);
+		if(entry < 0) return null;
+		int position = this.indexOffset + entry*ENTRY_SIZE + HASH_SIZE;
+		int offset = (int)this.map.getLong(position);
+		int length = this.map.getInt(position + 8);
+		ByteBuffer view = this.map.asReadOnlyBuffer();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	/**
+	 * Returns a content stored in the pack.
+	 * @param hash The hash of the content.
+	 * @return The content if present, null otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public String get(String hash) {
+		ByteBuffer bytes = getBytes(hash);
+		if(bytes==null) return null;
+		return StandardCharsets.UTF_8.decode(bytes).toString();
+	}
+
+	/* Binary searches the index; returns the entry number or -1. */
+	private int find(String hash) {
+		if(hash==null) throw new IllegalArgumentException();
+		byte[] key = toBytes(hash);
+		int low = 0;
+		int high = this.count - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int cmp = compare(this.indexOffset + mid*ENTRY_SIZE, key);
+			if(cmp < 0) low = mid + 1;
+			else if(cmp > 0) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/* Compares the hash of an index entry with a key, as unsigned bytes. */
+	private int compare(int position, byte[] key) {
+		for(int i = 0; i < HASH_SIZE; i++){
+			int cmp = (this.map.get(position + i) & 0xff) - (key[i] & 0xff);
+			if(cmp != 0) return cmp;
+		}
+		return 0;
+	}
+
+	/* Decodes a hex encoded hash. Unsigned byte order matches hex order. */
+	private static byte[] toBytes(String hash) {
+		byte[] bytes = new byte[HASH_SIZE];
+		for(int i = 0; i < HASH_SIZE && 2*i+1 < hash.length(); i++){
+			bytes[i] = (byte)((Character.digit(hash.charAt(2*i), 16) << 4)
+					| Character.digit(hash.charAt(2*i+1), 16));
+		}
+		return bytes;
+	}
+}
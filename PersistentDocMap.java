@@ -0,0 +1,479 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An immutable map from document name to content hash, implemented as a
+ * hash array mapped trie. Updates never modify a map; they return a new map
+ * which copies only the path from the root to the changed entry and shares
+ * every other node with the map it was derived from.
+ * @author
+ *
+ */
+public final class PersistentDocMap implements Iterable<Map.Entry<String, String>> {
+
+	/* The number of hash bits consumed by each level of the trie. */
+	private static final int BITS = 5;
+
+	/* The mask selecting the hash bits of one level. */
+	private static final int MASK = (1 << BITS) - 1;
+
+	/* The deepest a path can get: seven bitmap levels and a collision node. */
+	private static final int MAX_DEPTH = 8;
+
+	/* The map without any entries. */
+	public static final PersistentDocMap EMPTY =
+			new PersistentDocMap(new BitmapNode(0, new Object[0]), 0);
+
+	/* The root of the trie. */
+	private final Node root;
+
+	/* The number of entries in the map. */
+	private final int size;
+
+	private PersistentDocMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of entries in the map.
+	 * @return The entry count.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Checks if the map has no entries.
+	 * @return True if the map is empty, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return this.size==0;
+	}
+
+	/**
+	 * Returns the content hash of a document.
+	 * @param name The name of the document.
+	 * @return The content hash if the document is present, null otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public String get(String name) {
+		if(name==null) throw new IllegalArgumentException();
+		return this.root.find(name, spread(name), 0);
+	}
+
+	/**
+	 * Checks if a document is present in the map.
+	 * @param name The name of the document.
+	 * @return True if the document is present, false otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public boolean containsKey(String name) {
+		return get(name)!=null;
+	}
+
+	/**
+	 * Returns a map in which a document has a particular content hash.
+	 * @param name The name of the document.
+	 * @param hash The content hash of the document.
+	 * @return The updated map, or this map if nothing changed.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public PersistentDocMap put(String name, String hash) {
+		if(name==null||hash==null) throw new IllegalArgumentException();
+		boolean[] added = new boolean[1];
+		Node newRoot = this.root.put(new Leaf(name, hash, spread(name)), 0, added);
+		if(newRoot==this.root) return this;
+		return new PersistentDocMap(newRoot, added[0] ? this.size+1 : this.size);
+	}
+
+	/**
+	 * Returns a map without a particular document.
+	 * @param name The name of the document.
+	 * @return The updated map, or this map if the document was not present.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public PersistentDocMap remove(String name) {
+		if(name==null) throw new IllegalArgumentException();
+		Node newRoot = this.root.remove(name, spread(name), 0);
+		if(newRoot==this.root) return this;
+		if(newRoot==null) return EMPTY;
+		return new PersistentDocMap(newRoot, this.size-1);
+	}
+
+	/**
+	 * Returns an iterator over the entries of the map. The order is
+	 * unspecified, and not sorted, but stable: maps holding the same set of
+	 * names iterate them in the same order, whatever the insertion order.
+	 * @return The entry iterator.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new EntryIterator(this.root);
+	}
+
+	/**
+	 * Computes the entries which differ between this map and a newer one.
+	 * Subtrees the two maps share are skipped without being walked, so the
+	 * cost grows with the number of differences rather than with the size
+	 * of the maps.
+	 * @param newer The map to compare with.
+	 * @return The new content hash of every document added or changed in
+	 * the newer map, and null for every document removed from it, sorted by
+	 * name.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public Map<String, String> changesTo(PersistentDocMap newer) {
+		if(newer==null) throw new IllegalArgumentException();
+		Map<String, String> changes = new TreeMap<String, String>();
+		diff(this.root, newer.root, changes);
+		return changes;
+	}
+
+	/**
+	 * Adds the content hash of every document to a set. Nodes already in 
+	 * the visited set are skipped, so collecting from many maps which share 
+	 * nodes walks every shared node once.
+	 * @param hashes The set the hashes are added to.
+	 * @param visited The nodes visited so far; it should compare them by 
+	 * identity.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public void collectHashes(Set<String> hashes, Set<Object> visited) {
+		if(hashes==null||visited==null) throw new IllegalArgumentException();
+		collectHashes(this.root, hashes, visited);
+	}
+
+	private static void collectHashes(Object slot, Set<String> hashes, Set<Object> visited) {
+		if(slot instanceof Leaf){
+			hashes.add(((Leaf)slot).hash);
+		}
+		else if(slot instanceof Node && visited.add(slot)){
+			for(Object child : ((Node)slot).slots()){
+				collectHashes(child, hashes, visited);
+			}
+		}
+	}
+
+	/* Records the differences between two slots at the same trie position;
+	 * either one may be a leaf, a node or null. */
+	private static void diff(Object older, Object newer, Map<String, String> changes) {
+		if(older==newer) return;
+		if(older instanceof BitmapNode && newer instanceof BitmapNode){
+			BitmapNode a = (BitmapNode)older;
+			BitmapNode b = (BitmapNode)newer;
+			int bits = a.bitmap | b.bitmap;
+			while(bits!=0){
+				int bit = bits & -bits;
+				Object childA = (a.bitmap & bit)==0 ? null : a.slots[Integer.bitCount(a.bitmap & (bit-1))];
+				Object childB = (b.bitmap & bit)==0 ? null : b.slots[Integer.bitCount(b.bitmap & (bit-1))];
+				diff(childA, childB, changes);
+				bits &= ~bit;
+			}
+			return;
+		}
+		// The shapes differ here, so compare the few entries below directly.
+		Map<String, String> before = new HashMap<String, String>();
+		collect(older, before);
+		Map<String, String> after = new HashMap<String, String>();
+		collect(newer, after);
+		for(Map.Entry<String, String> e : after.entrySet()){
+			if(!e.getValue().equals(before.get(e.getKey()))) changes.put(e.getKey(), e.getValue());
+		}
+		for(String name : before.keySet()){
+			if(!after.containsKey(name)) changes.put(name, null);
+		}
+	}
+
+	/* Adds every entry below a slot to a map. */
+	private static void collect(Object slot, Map<String, String> entries) {
+		if(slot instanceof Leaf){
+			Leaf leaf = (Leaf)slot;
+			entries.put(leaf.name, leaf.hash);
+		}
+		else if(slot instanceof Node){
+			for(Object child : ((Node)slot).slots()){
+				collect(child, entries);
+			}
+		}
+	}
+
+	/* Improves the distribution of String hash codes over the trie levels. */
+	private static int spread(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/* Returns the index of the hash bits of a level. */
+	private static int index(int hash, int shift) {
+		return (hash >>> shift) & MASK;
+	}
+
+	/* Builds the smallest subtree holding two entries whose hashes differ. */
+	private static Node merge(Object a, int hashA, Object b, int hashB, int shift) {
+		int indexA = index(hashA, shift);
+		int indexB = index(hashB, shift);
+		if(indexA==indexB){
+			return new BitmapNode(1 << indexA, new Object[]{merge(a, hashA, b, hashB, shift+BITS)});
+		}
+		Object[] slots = indexA < indexB ? new Object[]{a, b} : new Object[]{b, a};
+		return new BitmapNode((1 << indexA) | (1 << indexB), slots);
+	}
+
+	/* Returns the leaf a node collapses to, or null if it holds more. */
+	private static Leaf singleLeaf(Node node) {
+		Object[] slots = node.slots();
+		if(slots.length==1 && slots[0] instanceof Leaf) return (Leaf)slots[0];
+		return null;
+	}
+
+	/**
+	 * An entry of the map.
+	 */
+	private static final class Leaf implements Map.Entry<String, String> {
+		private final String name;
+		private final String hash;
+		private final int nameHash;
+
+		private Leaf(String name, String hash, int nameHash) {
+			this.name = name;
+			this.hash = hash;
+			this.nameHash = nameHash;
+		}
+
+		@Override
+		public String getKey() {
+			return this.name;
+		}
+
+		@Override
+		public String getValue() {
+			return this.hash;
+		}
+
+		@Override
+		public String setValue(String value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * An interior node of the trie. Nodes are never modified once built.
+	 */
+	private static abstract class Node {
+		abstract String find(String name, int nameHash, int shift);
+		abstract Node put(Leaf leaf, int shift, boolean[] added);
+		abstract Node remove(String name, int nameHash, int shift);
+		abstract Object[] slots();
+	}
+
+	/**
+	 * A node whose bitmap tells which of the 32 children are present. The
+	 * slots hold either leaves or child nodes, in bit order.
+	 */
+	private static final class BitmapNode extends Node {
+		private final int bitmap;
+		private final Object[] slots;
+
+		private BitmapNode(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+
+		@Override
+		Object[] slots() {
+			return this.slots;
+		}
+
+		@Override
+		String find(String name, int nameHash, int shift) {
+			int bit = 1 << index(nameHash, shift);
+			if((this.bitmap & bit)==0) return null;
+			Object slot = this.slots[Integer.bitCount(this.bitmap & (bit-1))];
+			if(slot instanceof Node) return ((Node)slot).find(name, nameHash, shift+BITS);
+			Leaf leaf = (Leaf)slot;
+			return leaf.name.equals(name) ? leaf.hash : null;
+		}
+
+		@Override
+		Node put(Leaf leaf, int shift, boolean[] added) {
+			int bit = 1 << index(leaf.nameHash, shift);
+			int pos = Integer.bitCount(this.bitmap & (bit-1));
+			if((this.bitmap & bit)==0){
+				Object[] newSlots = new Object[this.slots.length+1];
+				System.arraycopy(this.slots, 0, newSlots, 0, pos);
+				newSlots[pos] = leaf;
+				System.arraycopy(this.slots, pos, newSlots, pos+1, this.slots.length-pos);
+				added[0] = true;
+				return new BitmapNode(this.bitmap | bit, newSlots);
+			}
+			Object slot = this.slots[pos];
+			Object replacement;
+			if(slot instanceof Node){
+				replacement = ((Node)slot).put(leaf, shift+BITS, added);
+			}
+			else{
+				Leaf existing = (Leaf)slot;
+				if(existing.name.equals(leaf.name)){
+					if(existing.hash.equals(leaf.hash)) return this;
+					replacement = leaf;
+				}
+				else if(existing.nameHash==leaf.nameHash){
+					added[0] = true;
+					replacement = new CollisionNode(leaf.nameHash, new Object[]{existing, leaf});
+				}
+				else{
+					added[0] = true;
+					replacement = merge(existing, existing.nameHash, leaf, leaf.nameHash, shift+BITS);
+				}
+			}
+			if(replacement==slot) return this;
+			Object[] newSlots = this.slots.clone();
+			newSlots[pos] = replacement;
+			return new BitmapNode(this.bitmap, newSlots);
+		}
+
+		@Override
+		Node remove(String name, int nameHash, int shift) {
+			int bit = 1 << index(nameHash, shift);
+			if((this.bitmap & bit)==0) return this;
+			int pos = Integer.bitCount(this.bitmap & (bit-1));
+			Object slot = this.slots[pos];
+			if(slot instanceof Node){
+				Node child = (Node)slot;
+				Node newChild = child.remove(name, nameHash, shift+BITS);
+				if(newChild==child) return this;
+				if(newChild!=null){
+					Leaf collapsed = singleLeaf(newChild);
+					Object[] newSlots = this.slots.clone();
+					newSlots[pos] = collapsed!=null ? collapsed : newChild;
+					return new BitmapNode(this.bitmap, newSlots);
+				}
+			}
+			else if(!((Leaf)slot).name.equals(name)) return this;
+			if(this.slots.length==1) return null;
+			Object[] newSlots = new Object[this.slots.length-1];
+			System.arraycopy(this.slots, 0, newSlots, 0, pos);
+			System.arraycopy(this.slots, pos+1, newSlots, pos, newSlots.length-pos);
+			return new BitmapNode(this.bitmap & ~bit, newSlots);
+		}
+	}
+
+	/**
+	 * A node holding the leaves of names whose hash codes are equal.
+	 */
+	private static final class CollisionNode extends Node {
+		private final int nameHash;
+		private final Object[] leaves;
+
+		private CollisionNode(int nameHash, Object[] leaves) {
+			this.nameHash = nameHash;
+			this.leaves = leaves;
+		}
+
+		@Override
+		Object[] slots() {
+			return this.leaves;
+		}
+
+		private int indexOf(String name) {
+			for(int i = 0; i < this.leaves.length; i++){
+				if(((Leaf)this.leaves[i]).name.equals(name)) return i;
+			}
+			return -1;
+		}
+
+		@Override
+		String find(String name, int nameHash, int shift) {
+			if(nameHash!=this.nameHash) return null;
+			int i = indexOf(name);
+			return i < 0 ? null : ((Leaf)this.leaves[i]).hash;
+		}
+
+		@Override
+		Node put(Leaf leaf, int shift, boolean[] added) {
+			if(leaf.nameHash!=this.nameHash){
+				added[0] = true;
+				return merge(this, this.nameHash, leaf, leaf.nameHash, shift);
+			}
+			int i = indexOf(leaf.name);
+			Object[] newLeaves;
+			if(i < 0){
+				newLeaves = new Object[this.leaves.length+1];
+				System.arraycopy(this.leaves, 0, newLeaves, 0, this.leaves.length);
+				newLeaves[this.leaves.length] = leaf;
+				added[0] = true;
+			}
+			else{
+				if(((Leaf)this.leaves[i]).hash.equals(leaf.hash)) return this;
+				newLeaves = this.leaves.clone();
+				newLeaves[i] = leaf;
+			}
+			return new CollisionNode(this.nameHash, newLeaves);
+		}
+
+		@Override
+		Node remove(String name, int nameHash, int shift) {
+			if(nameHash!=this.nameHash) return this;
+			int i = indexOf(name);
+			if(i < 0) return this;
+			if(this.leaves.length==1) return null;
+			Object[] newLeaves = new Object[this.leaves.length-1];
+			System.arraycopy(this.leaves, 0, newLeaves, 0, i);
+			System.arraycopy(this.leaves, i+1, newLeaves, i, newLeaves.length-i);
+			return new CollisionNode(this.nameHash, newLeaves);
+		}
+	}
+
+	/**
+	 * Walks the trie depth first, keeping the path in two small arrays.
+	 */
+	private static final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private final Object[][] path = new Object[MAX_DEPTH][];
+		private final int[] positions = new int[MAX_DEPTH];
+		private int depth;
+		private Leaf next;
+
+		private EntryIterator(Node root) {
+			this.path[0] = root.slots();
+			this.depth = 0;
+			advance();
+		}
+
+		private void advance() {
+			this.next = null;
+			while(this.depth >= 0){
+				Object[] slots = this.path[this.depth];
+				if(this.positions[this.depth] >= slots.length){
+					this.depth--;
+					continue;
+				}
+				Object slot = slots[this.positions[this.depth]++];
+				if(slot instanceof Leaf){
+					this.next = (Leaf)slot;
+					return;
+				}
+				this.depth++;
+				this.path[this.depth] = ((Node)slot).slots();
+				this.positions[this.depth] = 0;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next!=null;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if(this.next==null) throw new NoSuchElementException();
+			Leaf current = this.next;
+			advance();
+			return current;
+		}
+	}
+}
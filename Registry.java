@@ -0,0 +1,255 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The indexed store of the users and repos of the system. The command line
+ * utility, the server and the journal keep theirs in the shared registry.
+ * Users and repos are found by name in concurrent hash indexes, so lookups
+ * take constant time and no lock. Two secondary indexes link every repo to
+ * its subscribers and every user to the repos they administer, so deleting
+ * a user or a repo visits only its own links. Changes are serialised on the
+ * registry, which is locked before any user is.
+ * @author
+ *
+ */
+public class Registry {
+
+	/* The registry the system shares. */
+	private static final Registry SHARED = new Registry();
+
+	/* The users by name. */
+	private final ConcurrentMap<String, User> users;
+
+	/* The repos by name. */
+	private final ConcurrentMap<String, Repo> repos;
+
+	/* The subscribers of every repo, by repo name. */
+	private final ConcurrentMap<String, Set<User>> subscribers;
+
+	/* The repos every user administers, by user name. */
+	private final ConcurrentMap<String, Set<Repo>> adminRepos;
+
+	/**
+	 * Constructs an empty registry.
+	 */
+	public Registry() {
+		this.users = new ConcurrentHashMap<String, User>();
+		this.repos = new ConcurrentHashMap<String, Repo>();
+		this.subscribers = new ConcurrentHashMap<String, Set<User>>();
+		this.adminRepos = new ConcurrentHashMap<String, Set<Repo>>();
+	}
+
+	/**
+	 * Returns the registry the system shares.
+	 * @return The shared registry.
+	 */
+	public static Registry shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Adds a new user.
+	 * @param userName The name of the user.
+	 * @return The new user, null if a user of that name exists.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized User addUser(String userName) {
+		if(userName==null) throw new IllegalArgumentException();
+		if(this.users.containsKey(userName)) return null;
+		User user = new User(userName);
+		this.users.put(userName, user);
+		return user;
+	}
+
+	/**
+	 * Finds a user by name.
+	 * @param userName The name of the user.
+	 * @return The user, null if not found.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public User findUser(String userName) {
+		if(userName==null) throw new IllegalArgumentException();
+		return this.users.get(userName);
+	}
+
+	/**
+	 * Deletes a user, with the repos they administer, and unsubscribes them
+	 * from the other repos.
+	 * @param user The user to delete.
+	 * @return The deleted user, null if not found.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized User delUser(User user) {
+		if(user==null) throw new IllegalArgumentException();
+		if(!this.users.remove(user.getName(), user)) return null;
+		Set<Repo> administered = this.adminRepos.get(user.getName());
+		if(administered!=null){
+			for(Repo repo : administered.toArray(new Repo[administered.size()])){
+				delRepo(repo);
+			}
+		}
+		for(String repoName : user.getAllSubRepos()){
+			Set<User> subscribed = this.subscribers.get(repoName);
+			if(subscribed!=null) subscribed.remove(user);
+		}
+		return user;
+	}
+
+	/**
+	 * Adds a new repo, administered and subscribed to by a user.
+	 * @param repoName The name of the repo.
+	 * @param admin The administrator of the repo.
+	 * @return The new repo, null if a repo of that name exists.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized Repo addRepo(String repoName, User admin) {
+		return addRepo(repoName, admin, System.currentTimeMillis());
+	}
+
+	/* Adds a repo made at a given time, as replayed from the journal. */
+	synchronized Repo addRepo(String repoName, User admin, long timestamp) {
+		if(repoName==null||admin==null) throw new IllegalArgumentException();
+		if(this.repos.containsKey(repoName)) return null;
+		Repo repo = new Repo(admin, repoName, BlobStore.DEFAULT_MAX_CHAIN_DEPTH, timestamp);
+		this.repos.put(repoName, repo);
+		linkedSet(this.adminRepos, admin.getName()).add(repo);
+		subscribe(admin, repoName);
+		return repo;
+	}
+
+	/**
+	 * Finds a repo by name.
+	 * @param repoName The name of the repo.
+	 * @return The repo, null if not found.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public Repo findRepo(String repoName) {
+		if(repoName==null) throw new IllegalArgumentException();
+		return this.repos.get(repoName);
+	}
+
+	/**
+	 * Deletes a repo, unsubscribes its subscribers from it and drops its
+	 * cached versions. Only subscribers check a repo out, so dropping their 
+	 * working copies and pending check-ins of it leaves none behind.
+	 * @param repo The repo to delete.
+	 * @return The deleted repo, null if not found.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized Repo delRepo(Repo repo) {
+		if(repo==null) throw new IllegalArgumentException();
+		if(!this.repos.remove(repo.getName(), repo)) return null;
+		Set<Repo> administered = this.adminRepos.get(repo.getAdmin().getName());
+		if(administered!=null){
+			administered.remove(repo);
+			if(administered.isEmpty()) this.adminRepos.remove(repo.getAdmin().getName());
+		}
+		Set<User> subscribed = this.subscribers.remove(repo.getName());
+		if(subscribed!=null){
+			for(User user : subscribed){
+				user.dropRepo(repo.getName());
+			}
+		}
+		SnapshotCache.shared().invalidate(repo.getName());
+		return repo;
+	}
+
+	/**
+	 * Subscribes a user to a repo.
+	 * @param user The user subscribing.
+	 * @param repoName The name of the repo.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized void subscribe(User user, String repoName) {
+		if(user==null||repoName==null) throw new IllegalArgumentException();
+		user.subscribeRepo(repoName);
+		linkedSet(this.subscribers, repoName).add(user);
+	}
+
+	/**
+	 * Unsubscribes a user from a repo, dropping the user's working copy 
+	 * and pending check-in of it, so only subscribers hold either.
+	 * @param user The user unsubscribing.
+	 * @param repoName The name of the repo.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized void unsubscribe(User user, String repoName) {
+		if(user==null||repoName==null) throw new IllegalArgumentException();
+		user.dropRepo(repoName);
+		Set<User> subscribed = this.subscribers.get(repoName);
+		if(subscribed!=null) subscribed.remove(user);
+	}
+
+	/**
+	 * Returns the users subscribed to a repo.
+	 * @param repoName The name of the repo.
+	 * @return A read-only view of the subscribers, empty if none.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public Set<User> getSubscribers(String repoName) {
+		if(repoName==null) throw new IllegalArgumentException();
+		Set<User> subscribed = this.subscribers.get(repoName);
+		if(subscribed==null) return Collections.emptySet();
+		return Collections.unmodifiableSet(subscribed);
+	}
+
+	/**
+	 * Returns the repos a user administers.
+	 * @param userName The name of the user.
+	 * @return A read-only view of the repos, empty if none.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public Set<Repo> getAdminRepos(String userName) {
+		if(userName==null) throw new IllegalArgumentException();
+		Set<Repo> administered = this.adminRepos.get(userName);
+		if(administered==null) return Collections.emptySet();
+		return Collections.unmodifiableSet(administered);
+	}
+
+	/**
+	 * Returns the repos, in no particular order.
+	 * @return A copy of the list of repos.
+	 */
+	public List<Repo> getRepos() {
+		return new ArrayList<Repo>(this.repos.values());
+	}
+
+	/**
+	 * Returns the users, in no particular order.
+	 * @return A copy of the list of users.
+	 */
+	public List<User> getUsers() {
+		return new ArrayList<User>(this.users.values());
+	}
+
+	/**
+	 * Returns the number of users.
+	 * @return The user count.
+	 */
+	public int getUserCount() {
+		return this.users.size();
+	}
+
+	/**
+	 * Returns the number of repos.
+	 * @return The repo count.
+	 */
+	public int getRepoCount() {
+		return this.repos.size();
+	}
+
+	/* Returns the set an index holds for a key, adding an empty one if
+	 * missing. */
+	private static <T> Set<T> linkedSet(ConcurrentMap<String, Set<T>> index, String key) {
+		Set<T> set = index.get(key);
+		if(set==null){
+			set = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+			index.put(key, set);
+		}
+		return set;
+	}
+}
@@ -1,16 +1,32 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Represents a repository which stores and tracks changes to a collection of 
- * documents.
+ * documents. Changes to a repo are serialised by its lock in {@link RepoLocks};
+ * queueing a check-in and reading the current or an older version take no 
+ * lock, since the queue is lock-free and versions are immutable snapshots.
  * @author
  *
  */
 public class Repo {
 
-	/* The current version of the repo. */
-	private int version;
+	/* The most check-ins queued for approval at a time. */
+	public static final int MAX_QUEUED_CHECK_INS = 1024;
 
 	/* The name of the repo. It's a unique identifier for a repository. */
 	private final String repoName;
@@ -18,14 +34,33 @@ public class Repo {
 	/* The user who is the administrator of the repo. */
 	private final User admin;
 
-	/* The collection(list) of documents in the repo. */
-	private final List<Document> docs;
+	/* The check-ins queued by different users for admin approval, at most 
+	 * MAX_QUEUED_CHECK_INS. Users queue without locking; the admin's reads 
+	 * are serialised by the lock. */
+	private final MpscQueue<ChangeSet> checkIns;
 
-	/* The check-ins queued by different users for admin approval. */
-	private final QueueADT<ChangeSet> checkIns;
+	/* The content-addressed store of all document contents ever checked in. */
+	private final BlobStore blobs;
 
-	/* The stack of copies of the repo at points when any check-in was applied. */
-	private final StackADT<RepoCopy> versionRecords; 
+	/* The snapshot of the current version. Its parent chain is the history 
+	 * of versions, back to version 0 or to the oldest version kept by 
+	 * pruning. */
+	private volatile RepoSnapshot head;
+
+	/* The snapshot of every version in the history, oldest first: the head's 
+	 * parent chain in reverse. Until the history is pruned, a version's 
+	 * index is its number. Replaced under the repo's lock and read without 
+	 * it. */
+	private volatile VersionTable versions;
+
+	/* The snapshots reverted or pruned from the history. Working copies may 
+	 * still read from them, so their contents are kept until they are 
+	 * garbage collected. Guarded by the repo's lock. */
+	private final List<WeakReference<RepoSnapshot>> dropped;
+
+	/* The versions that added, edited or deleted every document, oldest 
+	 * first. Guarded by the repo's lock. */
+	private final Map<String, IntStack> docVersions;
 
 	/**
 	 * Constructs a repo object.
@@ -34,17 +69,37 @@ public class Repo {
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
 	public Repo(User admin, String repoName) {
-		// TODO: Implement this contructor. The following lines 
-		// are just meant for the method to compile. You should 
-		// remove or edit it in whatever way you like.
+		this(admin, repoName, BlobStore.DEFAULT_MAX_CHAIN_DEPTH);
+	}
+
+	/**
+	 * Constructs a repo object which stores edited documents as deltas
+	 * against their previous version, with a full copy at least every
+	 * maxChainDepth + 1 versions.
+	 * @param admin The administrator for the repo.
+	 * @param reponame The name of the repo.
+	 * @param maxChainDepth The longest chain of deltas between full copies.
+	 * @throws IllegalArgumentException if any argument is null or 
+	 * maxChainDepth is negative. 
+	 */
+	public Repo(User admin, String repoName, int maxChainDepth) {
+		this(admin, repoName, maxChainDepth, System.currentTimeMillis());
+	}
+
+	/* Constructs a repo whose version 0 was made at a given time, as 
+	 * replayed from the journal. */
+	Repo(User admin, String repoName, int maxChainDepth, long timestamp) {
 		if(admin==null||repoName==null) throw new IllegalArgumentException();
 		this.admin = admin;
 		this.repoName = repoName;
-		this.checkIns = new SimpleQueue<ChangeSet>();
-		this.versionRecords = new SimpleStack<RepoCopy>();
-		this.docs = new ArrayList<Document>();
-		this.versionRecords.push(new RepoCopy(repoName, 0, this.docs));
-		this.version = 0;
+		this.checkIns = new MpscQueue<ChangeSet>(MAX_QUEUED_CHECK_INS);
+		this.blobs = new BlobStore(maxChainDepth);
+		this.head = new RepoSnapshot(repoName, 0, PersistentDocMap.EMPTY, null, this.blobs,
+				new HistoryEntry(0, admin.getName(), Collections.<String>emptyList(), 0,
+						Collections.<String>emptyList(), timestamp));
+		this.versions = new VersionTable(new RepoSnapshot[] {this.head}, 1);
+		this.docVersions = new HashMap<String, IntStack>();
+		this.dropped = new ArrayList<WeakReference<RepoSnapshot>>();
 	}
 
 	/**
@@ -68,7 +123,7 @@ public class Repo {
 	 * @return A list of documents.
 	 */
 	public List<Document> getDocuments() {
-		return new ArrayList<Document>(this.docs);
+		return this.head.getDocuments();
 	}
 
 	/**
@@ -82,13 +137,77 @@ public class Repo {
 			throw new IllegalArgumentException();
 		}
 
-		for (Document d : this.docs) {
-			if (d.getName().equals(searchName)) {
-				return d;
-			}
+		return this.head.getDocument(searchName);
+	}
+
+	/**
+	 * Returns the snapshot of the current version of the repository.
+	 * Snapshots are immutable, so it may be read without any lock.
+	 * @return The current snapshot.
+	 */
+	public RepoSnapshot getHead() {
+		return this.head;
+	}
+
+	/**
+	 * Returns the snapshot of a version of the repository. Versions are 
+	 * indexed by number, so any of them is found in constant time, or in 
+	 * logarithmic time once the history was pruned. The index is read 
+	 * without any lock.
+	 * @param version The version wanted.
+	 * @return The snapshot, null if the repository has no such version or 
+	 * it was pruned.
+	 */
+	public RepoSnapshot getSnapshot(int version) {
+		return find(version);
+	}
+
+	/* Finds the snapshot of a version in the history, null if missing. */
+	private RepoSnapshot find(int version) {
+		RepoSnapshot found = findAtOrBefore(version);
+		return found!=null && found.getVersion()==version ? found : null;
+	}
+
+	/* Finds the snapshot of the newest version in the history no newer than 
+	 * a version, null if all are newer. */
+	private RepoSnapshot findAtOrBefore(int version) {
+		VersionTable table = this.versions;
+		if(table.size()==0) return null;
+		RepoSnapshot newest = table.get(table.size() - 1);
+		if(version >= newest.getVersion()) return newest;
+		if(version >= 0 && version < table.size()
+				&& table.get(version).getVersion()==version){
+			return table.get(version);
 		}
+		int lo = 0, hi = table.size() - 1;
+		while(lo <= hi){
+			int mid = (lo + hi) >>> 1;
+			int midVersion = table.get(mid).getVersion();
+			if(midVersion < version) lo = mid + 1;
+			else if(midVersion > version) hi = mid - 1;
+			else return table.get(mid);
+		}
+		return hi >= 0 ? table.get(hi) : null;
+	}
 
-		return null;
+	/**
+	 * Returns a copy of a version of the repository, if the requesting user 
+	 * is the administrator or a subscriber. The repository is left as it is 
+	 * and no lock is taken; the version is materialised through the shared 
+	 * {@link SnapshotCache}, so a version checked out again and again is 
+	 * rebuilt once.
+	 * @param requestingUser The user requesting the copy.
+	 * @param version The version to copy.
+	 * @return The copy of the version, null if the user may not read the 
+	 * repository or it has no such version.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public RepoCopy checkOut(User requestingUser, int version) {
+		if(requestingUser==null) throw new IllegalArgumentException();
+		if(!this.admin.equals(requestingUser) && !requestingUser.isSubRepo(this.repoName)) return null;
+		RepoSnapshot snapshot = getSnapshot(version);
+		if(snapshot==null) return null;
+		return SnapshotCache.shared().get(snapshot);
 	}
 
 	/**
@@ -96,18 +215,105 @@ public class Repo {
 	 * @return The version of the repository.
 	 */
 	public int getVersion() {
-		return this.version;
+		return this.head.getVersion();
 	}
 
 	/**
-	 * Returns the number of versions (or changes made) for this repository.
+	 * Returns the number of versions in the history of this repository, 
+	 * which is fewer than the changes made once the history was pruned.
 	 * @return The version count.
 	 */
 	public int getVersionCount() {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
-		return this.versionRecords.size();
+		return this.versions.size();
+	}
+
+	/**
+	 * Returns the history of the repository, newest version first. The 
+	 * first version listed is looked up in the version index, and the 
+	 * entries are read lazily from its parent chain, so listing a page 
+	 * costs its length plus, once the history was pruned, a logarithmic 
+	 * lookup.
+	 * @param startVersion The newest version listed; newer ones are skipped, 
+	 * and if it was pruned, listing starts at the next older version kept.
+	 * @param limit The largest number of entries listed.
+	 * @return An iterator over the history entries.
+	 * @throws IllegalArgumentException if limit is negative.
+	 */
+	public Iterator<HistoryEntry> getHistory(int startVersion, final int limit) {
+		if(limit < 0) throw new IllegalArgumentException();
+		final RepoSnapshot first = findAtOrBefore(startVersion);
+		return new Iterator<HistoryEntry>() {
+			private RepoSnapshot next = first;
+			private int count = 0;
+
+			@Override
+			public boolean hasNext() {
+				return this.next!=null && this.count < limit;
+			}
+
+			@Override
+			public HistoryEntry next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				HistoryEntry entry = this.next.getEntry();
+				this.next = this.next.getParent();
+				this.count++;
+				return entry;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the history of a document, newest version first: the entries 
+	 * of the versions which added, edited or deleted it. The versions are 
+	 * looked up in an index by document name, so the cost depends on the 
+	 * number of entries returned, not on the length of the history.
+	 * @param docName The name of the document.
+	 * @param limit The largest number of entries returned.
+	 * @return The history entries, empty if no version touched the document.
+	 * @throws IllegalArgumentException if docName is null or limit is 
+	 * negative.
+	 */
+	public List<HistoryEntry> getDocHistory(String docName, int limit) {
+		if(docName==null||limit < 0) throw new IllegalArgumentException();
+		List<HistoryEntry> history = new ArrayList<HistoryEntry>();
+		Lock lock = RepoLocks.forRepo(this.repoName).readLock();
+		lock.lock();
+		try {
+			IntStack touching = this.docVersions.get(docName);
+			if(touching==null) return history;
+			for(int i = touching.size() - 1; i >= 0 && history.size() < limit; i--){
+				history.add(find(touching.get(i)).getEntry());
+			}
+		} finally {
+			lock.unlock();
+		}
+		return history;
+	}
+
+	/**
+	 * Returns the entry of the last version which added or edited a 
+	 * document, the version its current content comes from.
+	 * @param docName The name of the document.
+	 * @return The history entry, null if the document is not in the 
+	 * current version.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public HistoryEntry getLastChange(String docName) {
+		if(docName==null) throw new IllegalArgumentException();
+		Lock lock = RepoLocks.forRepo(this.repoName).readLock();
+		lock.lock();
+		try {
+			IntStack touching = this.docVersions.get(docName);
+			if(touching==null || !this.head.getDocHashes().containsKey(docName)) return null;
+			return find(touching.get(touching.size() - 1)).getEntry();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -115,10 +321,36 @@ public class Repo {
 	 * @return The string containing the history of changes.
 	 */
 	public String getVersionHistory() {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
-		return this.versionRecords.toString();
+		StringBuilder history = new StringBuilder();
+		for(RepoSnapshot s = this.head; s != null; s = s.getParent()){
+			// Every version is read once, so the shared cache is left alone.
+			history.append(s.toString()).append("\n");
+		}
+		return history.toString();
+	}
+
+	/**
+	 * Moves the contents which only older versions refer to off the heap, 
+	 * into a pack file. The contents of the current version stay on the 
+	 * heap; older versions read theirs from the pack file when needed.
+	 * @param packFile The pack file to write.
+	 * @return The number of contents moved.
+	 * @throws IOException if the pack file can't be written.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public int packHistory(File packFile) throws IOException {
+		if(packFile==null) throw new IllegalArgumentException();
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			Set<String> inUse = new HashSet<String>();
+			for(Map.Entry<String, String> e : this.head.getDocHashes()){
+				inUse.add(e.getValue());
+			}
+			return this.blobs.pack(inUse, packFile);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -126,22 +358,20 @@ public class Repo {
 	 * @return The count of changes.
 	 */
 	public int getCheckInCount() {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
 		return this.checkIns.size();
 	}
 
 
 	/**
-	 * Queue a new check-in for admin approval.
+	 * Queue a new check-in for admin approval, unless MAX_QUEUED_CHECK_INS 
+	 * check-ins are queued already.
 	 * @param checkIn The check-in to be queued.
+	 * @return True if the check-in was queued, false if the queue is full.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public void queueCheckIn(ChangeSet checkIn) {
-		// TODO: Implement this method. 
+	public boolean queueCheckIn(ChangeSet checkIn) {
 		if(checkIn==null) throw new IllegalArgumentException();
-		this.checkIns.enqueue(checkIn);
+		return this.checkIns.offer(checkIn);
 	}
 
 	/**
@@ -150,29 +380,27 @@ public class Repo {
 	 * @param requestingUser The user requesting for the change set.
 	 * @return The checkin if the requestingUser is the admin and a checkin
 	 * exists, null otherwise.
-	 * @throws EmptyQueueException 
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
 	public ChangeSet getNextCheckIn(User requestingUser){
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
 		if(requestingUser==null) throw new IllegalArgumentException();
-		if(this.admin.equals(requestingUser)&&!this.checkIns.isEmpty()){
-			try {
-				return this.checkIns.dequeue();
-			} catch (EmptyQueueException e) {
-				e.printStackTrace();
-				return null;
-			}
+		if(!this.admin.equals(requestingUser)) return null;
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			return this.checkIns.poll();
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 
 	/**
 	 * Applies the changes contained in a particular checkIn and adds
 	 * it to the repository if the requesting user is the administrator.
-	 * Also saves a copy of changed repository in the versionRecords.
+	 * Also records a snapshot of the changed repository as the new head.
+	 * An edit of a document changed since the check-in's base version is 
+	 * merged line by line with the changes approved meanwhile; the 
+	 * documents whose merge has conflicts are reported by the check-in.
 	 * @param requestingUser The user requesting the approval.
 	 * @param checkIn The checkIn to approve.
 	 * @return ACCESS_DENIED if requestingUser is not the admin, SUCCESS 
@@ -181,43 +409,179 @@ public class Repo {
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
 	public ErrorType approveCheckIn(User requestingUser, ChangeSet checkIn) throws EmptyStackException {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it whatever way you like.
+		return approveCheckIn(requestingUser, checkIn, System.currentTimeMillis());
+	}
+
+	/* Approves a check-in as a version made at a given time, as replayed 
+	 * from the journal. */
+	ErrorType approveCheckIn(User requestingUser, ChangeSet checkIn, long timestamp) throws EmptyStackException {
 		if(requestingUser==null||checkIn==null) throw new IllegalArgumentException();
 		if(requestingUser.equals(admin)){
-			int changeCount = checkIn.getChangeCount();
-			for(int i = 0; i < changeCount; i++){
-				Change theChange = checkIn.getNextChange();
-				if(theChange!=null){
-					Document theDoc = theChange.getDoc();
-					Change.Type theType = theChange.getType();
-					if(theType.equals(Change.Type.ADD)){
-						this.docs.add(theDoc);
+			Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+			lock.lock();
+			try {
+				commit(Collections.singletonList(checkIn), requestingUser, timestamp);
+				return ErrorType.SUCCESS;
+			} finally {
+				lock.unlock();
+			}
+		}
+		else return ErrorType.ACCESS_DENIED;
+	}
+
+	/**
+	 * Approves the next queued check-ins, up to a number of them, as a 
+	 * single new version, if the requesting user is the administrator. The 
+	 * check-ins are folded in order: a document added then deleted is left 
+	 * out, and only the last content of a document edited several times is 
+	 * stored. Edits are merged as {@link #approveCheckIn(User, ChangeSet)} 
+	 * does.
+	 * @param requestingUser The user requesting the approval.
+	 * @param max The largest number of check-ins to approve.
+	 * @return The check-ins approved in order, empty if none was queued; 
+	 * null if requestingUser is not the admin.
+	 * @throws IllegalArgumentException if requestingUser is null or max is 
+	 * not positive.
+	 */
+	public List<ChangeSet> approveCheckIns(User requestingUser, int max) {
+		return approveCheckIns(requestingUser, max, System.currentTimeMillis());
+	}
+
+	/* Approves check-ins as one version made at a given time, as replayed 
+	 * from the journal. */
+	List<ChangeSet> approveCheckIns(User requestingUser, int max, long timestamp) {
+		if(requestingUser==null||max <= 0) throw new IllegalArgumentException();
+		if(!this.admin.equals(requestingUser)) return null;
+		List<ChangeSet> approved = new ArrayList<ChangeSet>();
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			ChangeSet next;
+			while(approved.size() < max && (next = this.checkIns.poll())!=null){
+				approved.add(next);
+			}
+			if(!approved.isEmpty()) commit(approved, requestingUser, timestamp);
+		} finally {
+			lock.unlock();
+		}
+		return approved;
+	}
+
+	/* Folds the changes of check-ins, in order, into one new version made 
+	 * by a user at a given time; the caller holds the write lock. */
+	private void commit(List<ChangeSet> checkIns, User committer, long timestamp) {
+		PersistentDocMap docs = this.head.getDocHashes();
+		int changeCount = 0;
+		Set<String> authors = new LinkedHashSet<String>();
+		// The content of every document changed so far, null once deleted.
+		Map<String, String> changed = new LinkedHashMap<String, String>();
+		for(ChangeSet checkIn : checkIns){
+			if(checkIn.getAuthor()!=null) authors.add(checkIn.getAuthor());
+			// The last content checked in for every document edited so far.
+			Map<String, String> edited = new HashMap<String, String>();
+			ChangeSet.Cursor theChange = checkIn.cursor();
+			while(theChange.next()){
+				changeCount++;
+				String name = theChange.getDocName();
+				String content = theChange.getContent();
+				Change.Type theType = theChange.getType();
+				boolean folded = changed.containsKey(name);
+				if(theType.equals(Change.Type.ADD)){
+					changed.put(name, content);
+				}
+				else if(folded ? changed.get(name)!=null : docs.containsKey(name)){
+					if(theType.equals(Change.Type.DEL)){
+						changed.put(name, null);
 					}
-					else{
-						for(int j = 0; j < docs.size(); j++){
-							if(theDoc.getName().equals(docs.get(j).getName())){
-								if(theType.equals(Change.Type.DEL)){
-									if (docs == null) {
-										throw new IllegalArgumentException();
-									}
-									this.docs.remove(theDoc);
-								}
-								else if(theType.equals(Change.Type.EDIT)){
-									docs.get(j).setContent(theChange.getDoc().getContent());
-								}
-							}
+					else if(theType.equals(Change.Type.EDIT)){
+						String base = edited.containsKey(name) ? edited.get(name) : checkIn.getBaseContent(name);
+						edited.put(name, content);
+						if(base!=null){
+							String current = folded ? changed.get(name) : this.blobs.get(docs.get(name));
+							Merge3 merged = Merge3.merge(base, current, content);
+							if(merged.hasConflicts()) checkIn.addConflict(name);
+							content = merged.getContent();
 						}
+						changed.put(name, content);
 					}
 				}
 			}
+		}
+		// Only the documents whose content differs count as touched.
+		List<String> touched = new ArrayList<String>();
+		for(Map.Entry<String, String> e : changed.entrySet()){
+			String name = e.getKey();
+			String oldHash = docs.get(name);
+			if(e.getValue()==null){
+				if(oldHash==null) continue;
+				docs = docs.remove(name);
+			}
+			else{
+				String hash = this.blobs.put(e.getValue(), oldHash);
+				if(hash.equals(oldHash)) continue;
+				docs = docs.put(name, hash);
+			}
+			touched.add(name);
+		}
+		Collections.sort(touched);
+		record(docs, new ArrayList<String>(authors), changeCount, touched, committer, timestamp);
+	}
 
-			this.version++;
-			this.versionRecords.push(new RepoCopy(repoName, this.version, this.docs));
-			return ErrorType.SUCCESS;
+	/* Makes the documents the new head version, made at a given time, and 
+	 * indexes it; the caller holds the write lock. */
+	private void record(PersistentDocMap docs, List<String> authors, int changeCount, List<String> touched,
+			User committer, long timestamp) {
+		int version = this.head.getVersion() + 1;
+		HistoryEntry entry = new HistoryEntry(version, committer.getName(), authors, changeCount, touched,
+				timestamp);
+		RepoSnapshot next = new RepoSnapshot(repoName, version, docs, this.head, this.blobs, entry);
+		// Indexed before it is the head, so the head is always found.
+		this.versions = this.versions.add(next);
+		this.head = next;
+		for(String name : touched){
+			IntStack touching = this.docVersions.get(name);
+			if(touching==null){
+				touching = new IntStack();
+				this.docVersions.put(name, touching);
+			}
+			touching.push(version);
 		}
-		else return ErrorType.ACCESS_DENIED;
+	}
+
+	/**
+	 * Restores the documents of an older version as a new version, if the 
+	 * requesting user is the administrator. Unlike {@link #revert(User)}, 
+	 * the versions made since are kept in the history. Only the documents 
+	 * which differ are compared, so the cost depends on the changes since 
+	 * the older version, not on the number of versions in between.
+	 * @param requestingUser The user requesting the revert.
+	 * @param version The version whose documents are restored.
+	 * @return ACCESS_DENIED if requestingUser is not the admin, 
+	 * NO_OLDER_VERSION if version is not older than the present version, 
+	 * SUCCESS otherwise.
+	 * @throws IllegalArgumentException if requestingUser is null.
+	 */
+	public ErrorType revertTo(User requestingUser, int version) {
+		return revertTo(requestingUser, version, System.currentTimeMillis());
+	}
+
+	/* Restores an older version as a new version made at a given time, as 
+	 * replayed from the journal. */
+	ErrorType revertTo(User requestingUser, int version, long timestamp) {
+		if(requestingUser==null) throw new IllegalArgumentException();
+		if (!requestingUser.equals(admin)) return ErrorType.ACCESS_DENIED;
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			RepoSnapshot older = version < this.head.getVersion() ? find(version) : null;
+			if (older == null) return ErrorType.NO_OLDER_VERSION;
+			PersistentDocMap docs = older.getDocHashes();
+			List<String> touched = new ArrayList<String>(this.head.getDocHashes().changesTo(docs).keySet());
+			record(docs, Collections.<String>emptyList(), touched.size(), touched, requestingUser, timestamp);
+		} finally {
+			lock.unlock();
+		}
+		return ErrorType.SUCCESS;
 	}
 
 	/**
@@ -230,23 +594,237 @@ public class Repo {
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
 	public ErrorType revert(User requestingUser) {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it whatever way you like.
 		if(requestingUser==null) throw new IllegalArgumentException();
-		if(this.version > 0 && requestingUser.equals(admin)){
-			try{
-				this.versionRecords.pop();
-				this.docs.clear();
-				for(int i = 0; i < versionRecords.peek().getDocuments().size(); i++){
-					this.docs.add(this.versionRecords.peek().getDocuments().get(i));
-				}
-				this.version--;
-			}catch(EmptyStackException e){
+		if (!requestingUser.equals(admin)) return ErrorType.ACCESS_DENIED;
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			if (this.head.getParent() == null) return ErrorType.NO_OLDER_VERSION;
+			// The reverted version is the newest in the index of every 
+			// document it touched.
+			for(String name : this.head.getEntry().getTouchedDocs()){
+				IntStack touching = this.docVersions.get(name);
+				touching.pop();
+				if(touching.isEmpty()) this.docVersions.remove(name);
 			}
+			this.versions = this.versions.removeLast();
+			this.dropped.add(new WeakReference<RepoSnapshot>(this.head));
+			this.head = this.head.getParent();
+		} catch (EmptyStackException e) {
+			// Every document the head touched lists the head.
+			throw new IllegalStateException(e);
+		} finally {
+			lock.unlock();
 		}
-		else if (!requestingUser.equals(admin)) return ErrorType.ACCESS_DENIED;
-		else if (this.version==0) return ErrorType.NO_OLDER_VERSION;
 		return ErrorType.SUCCESS;
 	}
+
+	/* Selects the versions of the history a retention policy drops, oldest 
+	 * first. The head is always kept. */
+	int[] planPrune(RetentionPolicy policy, long now) {
+		Lock lock = RepoLocks.forRepo(this.repoName).readLock();
+		lock.lock();
+		try {
+			VersionTable table = this.versions;
+			long[] timestamps = new long[table.size()];
+			for(int i = 0; i < timestamps.length; i++){
+				timestamps[i] = table.get(i).getEntry().getTimestamp();
+			}
+			boolean[] keep = policy.select(timestamps, now);
+			keep[keep.length - 1] = true;
+			int count = 0;
+			for(boolean k : keep){
+				if(!k) count++;
+			}
+			int[] drops = new int[count];
+			for(int i = 0, d = 0; i < keep.length; i++){
+				if(!keep[i]) drops[d++] = table.get(i).getVersion();
+			}
+			return drops;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Drops versions from the history, in one hold of the write lock. Every 
+	 * version dropped is folded into the next newer version kept, which is 
+	 * relinked to the version kept before it, as the dropped ones are; 
+	 * versions no longer in the history, and the head, are skipped. Returns 
+	 * the number of versions dropped. */
+	int dropVersions(int[] drops, int from, int to) {
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			// The version every dropped version was folded into.
+			Map<Integer, Integer> foldedInto = new HashMap<Integer, Integer>();
+			// The documents whose index lists a dropped version.
+			Set<String> affected = new HashSet<String>();
+			List<HistoryEntry> folded = new ArrayList<HistoryEntry>();
+			VersionTable table = this.versions;
+			RepoSnapshot[] compacted = new RepoSnapshot[table.size()];
+			int d = from, kept = 0;
+			for(int i = 0; i < table.size(); i++){
+				RepoSnapshot s = table.get(i);
+				while(d < to && drops[d] < s.getVersion()) d++;
+				if(d < to && drops[d]==s.getVersion() && s!=this.head){
+					folded.add(s.getEntry());
+					affected.addAll(s.getEntry().getTouchedDocs());
+					this.dropped.add(new WeakReference<RepoSnapshot>(s));
+					// Working copies holding it must not keep older dropped 
+					// versions alive.
+					s.relink(kept==0 ? null : compacted[kept - 1], s.getEntry());
+					continue;
+				}
+				if(!folded.isEmpty()){
+					s.relink(kept==0 ? null : compacted[kept - 1], s.getEntry().squash(folded));
+					for(HistoryEntry e : folded){
+						foldedInto.put(e.getVersion(), s.getVersion());
+					}
+					folded.clear();
+				}
+				compacted[kept++] = s;
+			}
+			if(foldedInto.isEmpty()) return 0;
+			this.versions = new VersionTable(compacted, kept);
+			// Index the versions kept in place of the dropped ones.
+			for(String name : affected){
+				IntStack touching = this.docVersions.get(name);
+				IntStack reindexed = new IntStack();
+				for(int i = 0; i < touching.size(); i++){
+					Integer into = foldedInto.get(touching.get(i));
+					int v = into==null ? touching.get(i) : into;
+					if(reindexed.isEmpty() || reindexed.get(reindexed.size() - 1)!=v) reindexed.push(v);
+				}
+				this.docVersions.put(name, reindexed);
+			}
+			return foldedInto.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Returns the snapshots whose contents must be kept: the versions in the 
+	 * history and the dropped ones still reachable. */
+	List<RepoSnapshot> getRetainedSnapshots() {
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			VersionTable table = this.versions;
+			List<RepoSnapshot> retained = new ArrayList<RepoSnapshot>(table.size());
+			for(int i = 0; i < table.size(); i++){
+				retained.add(table.get(i));
+			}
+			List<WeakReference<RepoSnapshot>> reachable = new ArrayList<WeakReference<RepoSnapshot>>();
+			for(WeakReference<RepoSnapshot> ref : this.dropped){
+				RepoSnapshot s = ref.get();
+				if(s!=null){
+					retained.add(s);
+					reachable.add(ref);
+				}
+			}
+			this.dropped.clear();
+			this.dropped.addAll(reachable);
+			return retained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Returns the versions in the history, oldest first. */
+	List<RepoSnapshot> getVersions() {
+		VersionTable table = this.versions;
+		List<RepoSnapshot> snapshots = new ArrayList<RepoSnapshot>(table.size());
+		for(int i = 0; i < table.size(); i++){
+			snapshots.add(table.get(i));
+		}
+		return snapshots;
+	}
+
+	/* Returns the check-ins queued for approval, in order, leaving them 
+	 * queued; the caller holds the write lock. */
+	List<ChangeSet> getQueuedCheckIns() {
+		return this.checkIns.toList();
+	}
+
+	/* Replaces the history with the versions of a journal snapshot, oldest 
+	 * first: the contents of the documents every version changed, null for 
+	 * the ones it deleted, and its entry. */
+	void restoreHistory(List<Map<String, String>> changes, List<HistoryEntry> entries) {
+		if(changes.isEmpty() || changes.size()!=entries.size()) throw new IllegalArgumentException();
+		Lock lock = RepoLocks.forRepo(this.repoName).writeLock();
+		lock.lock();
+		try {
+			RepoSnapshot[] restored = new RepoSnapshot[entries.size()];
+			RepoSnapshot parent = null;
+			PersistentDocMap docs = PersistentDocMap.EMPTY;
+			this.docVersions.clear();
+			for(int i = 0; i < restored.length; i++){
+				for(Map.Entry<String, String> e : changes.get(i).entrySet()){
+					if(e.getValue()==null) docs = docs.remove(e.getKey());
+					else docs = docs.put(e.getKey(), this.blobs.put(e.getValue(), docs.get(e.getKey())));
+				}
+				HistoryEntry entry = entries.get(i);
+				parent = new RepoSnapshot(this.repoName, entry.getVersion(), docs, parent, this.blobs, entry);
+				restored[i] = parent;
+				for(String name : entry.getTouchedDocs()){
+					IntStack touching = this.docVersions.get(name);
+					if(touching==null){
+						touching = new IntStack();
+						this.docVersions.put(name, touching);
+					}
+					touching.push(entry.getVersion());
+				}
+			}
+			this.versions = new VersionTable(restored, restored.length);
+			this.head = parent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Returns the store of the repo's contents. */
+	BlobStore getBlobs() {
+		return this.blobs;
+	}
+
+	/**
+	 * The snapshots of the history, oldest first, as published to readers. 
+	 * A table is never changed once published: adding a snapshot fills the 
+	 * slot after the table's last one, which no published table covers, and 
+	 * removing one copies the array.
+	 */
+	private static final class VersionTable {
+		private final RepoSnapshot[] items;
+		private final int size;
+
+		VersionTable(RepoSnapshot[] items, int size) {
+			this.items = items;
+			this.size = size;
+		}
+
+		/* Returns the table with a snapshot added at the end; only called 
+		 * on the current table, under the repo's write lock. */
+		VersionTable add(RepoSnapshot snapshot) {
+			RepoSnapshot[] grown = this.items;
+			if(this.size==grown.length) grown = Arrays.copyOf(grown, Math.max(4, this.size * 2));
+			grown[this.size] = snapshot;
+			return new VersionTable(grown, this.size + 1);
+		}
+
+		/* Returns the table without its last snapshot, which it no longer 
+		 * refers to. */
+		VersionTable removeLast() {
+			RepoSnapshot[] copy = Arrays.copyOf(this.items, this.items.length);
+			copy[this.size - 1] = null;
+			return new VersionTable(copy, this.size - 1);
+		}
+
+		RepoSnapshot get(int index) {
+			return this.items[index];
+		}
+
+		int size() {
+			return this.size;
+		}
+	}
 }
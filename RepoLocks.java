@@ -0,0 +1,40 @@
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped locks guarding the mutable state of repositories. A repo is
+ * mapped to one of a fixed number of read-write locks by the hash of its
+ * name, so repos never contend unless they share a stripe and no lock has
+ * to be created or removed as repos come and go.
+ * @author
+ *
+ */
+public class RepoLocks {
+
+	/* The number of stripes. A power of two, so the hash can be masked. */
+	private static final int STRIPES = 64;
+
+	/* The locks, one per stripe. */
+	private static final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+	static {
+		for(int i = 0; i < STRIPES; i++){
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	private RepoLocks() {
+	}
+
+	/**
+	 * Returns the lock guarding a repo.
+	 * @param repoName The name of the repo.
+	 * @return The read-write lock of the repo's stripe.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static ReadWriteLock forRepo(String repoName) {
+		if(repoName==null) throw new IllegalArgumentException();
+		int h = repoName.hashCode();
+		return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+}
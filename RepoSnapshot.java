@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the state of a repository at a particular version. Snapshots
+ * form a tree through their parent links: each one holds
+ * a persistent map from document name to content hash which shares every
+ * unchanged node with the map of its parent. The contents themselves live
+ * once in the repository's blob store. The documents of a snapshot never 
+ * change; only pruning the history may link it to an older parent, with an 
+ * entry covering the versions skipped.
+ * @author
+ *
+ */
+public class RepoSnapshot {
+
+	/* The name of the repo the snapshot belongs to. */
+	private final String repoName;
+
+	/* The version of the repo captured by the snapshot. */
+	private final int version;
+
+	/* The content hash of every document at this version. */
+	private final PersistentDocMap docs;
+
+	/* The snapshot this one was derived from, null for the first version. */
+	private volatile RepoSnapshot parent;
+
+	/* The store holding the contents referenced by the snapshot. */
+	private final BlobStore blobs;
+
+	/* Who made the version, when, and with how many changes. */
+	private volatile HistoryEntry entry;
+
+	/**
+	 * Constructs a snapshot.
+	 * @param repoName The name of the repo.
+	 * @param version The version being captured.
+	 * @param docs The content hash of every document at that version.
+	 * @param parent The previous snapshot, null for the first version.
+	 * @param blobs The blob store of the repo.
+	 * @param entry The history entry of the version.
+	 * @throws IllegalArgumentException if repoName, docs, blobs or entry is 
+	 * null.
+	 */
+	public RepoSnapshot(String repoName, int version, PersistentDocMap docs,
+			RepoSnapshot parent, BlobStore blobs, HistoryEntry entry) {
+		if(repoName==null||docs==null||blobs==null||entry==null) throw new IllegalArgumentException();
+		this.repoName = repoName;
+		this.version = version;
+		this.docs = docs;
+		this.parent = parent;
+		this.blobs = blobs;
+		this.entry = entry;
+	}
+
+	/**
+	 * Returns the name of the repo the snapshot belongs to.
+	 * @return The repo name.
+	 */
+	public String getRepoName() {
+		return this.repoName;
+	}
+
+	/**
+	 * Returns the version captured by the snapshot.
+	 * @return The version.
+	 */
+	public int getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Returns the snapshot this one was derived from.
+	 * @return The parent snapshot, null for the first version.
+	 */
+	public RepoSnapshot getParent() {
+		return this.parent;
+	}
+
+	/**
+	 * Returns the history entry of the version captured by the snapshot.
+	 * @return The history entry.
+	 */
+	public HistoryEntry getEntry() {
+		return this.entry;
+	}
+
+	/* Links the snapshot to a new parent when the versions in between are 
+	 * pruned; the entry covers their changes as well. Readers walking the 
+	 * old links still see a valid, longer history. */
+	void relink(RepoSnapshot parent, HistoryEntry entry) {
+		this.parent = parent;
+		this.entry = entry;
+	}
+
+	/**
+	 * Returns the content hash of every document in the snapshot.
+	 * @return The persistent map from document name to content hash.
+	 */
+	public PersistentDocMap getDocHashes() {
+		return this.docs;
+	}
+
+	/**
+	 * Rebuilds a document captured by the snapshot.
+	 * @param name The name of the document.
+	 * @return A new document if present in the snapshot, null otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public Document getDocument(String name) {
+		String hash = this.docs.get(name);
+		if(hash==null) return null;
+		return new Document(name, this.blobs.get(hash), this.repoName);
+	}
+
+	/**
+	 * Rebuilds the documents captured by the snapshot.
+	 * @return A new list of new documents.
+	 */
+	public List<Document> getDocuments() {
+		List<Document> list = new ArrayList<Document>(this.docs.size());
+		for(Map.Entry<String, String> e : this.docs){
+			list.add(new Document(e.getKey(), this.blobs.get(e.getValue()), this.repoName));
+		}
+		return list;
+	}
+
+	/**
+	 * Materialises the snapshot as a copy of the repo.
+	 * @return The repo copy at the captured version.
+	 */
+	public RepoCopy toRepoCopy() {
+		return new RepoCopy(this.repoName, this.version, getDocuments());
+	}
+
+	@Override
+	public String toString() {
+		return toRepoCopy().toString();
+	}
+}
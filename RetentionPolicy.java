@@ -0,0 +1,110 @@
+import java.util.TimeZone;
+
+/**
+ * Tells which versions of a repository's history pruning keeps. The last
+ * versions are always kept. Of the older ones, the last version of every
+ * day may be kept as a daily checkpoint, and the versions older than a
+ * given age are squashed into one. Every version not kept is folded into
+ * the next newer version kept.
+ * @author
+ *
+ */
+public class RetentionPolicy {
+
+	/* The age given to never squash versions. */
+	public static final long NEVER = Long.MAX_VALUE;
+
+	/* The number of milliseconds in a day. */
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	/* The number of newest versions always kept. */
+	private final int keepLast;
+
+	/* Whether the last version of every day is kept. */
+	private final boolean dailyCheckpoints;
+
+	/* The age in milliseconds past which versions are squashed into one. */
+	private final long squashAfter;
+
+	/**
+	 * Constructs a retention policy.
+	 * @param keepLast The number of newest versions always kept.
+	 * @param dailyCheckpoints True to keep the last version of every day.
+	 * @param squashAfter The age in milliseconds past which versions are
+	 * squashed into one, or {@link #NEVER}.
+	 * @throws IllegalArgumentException if keepLast is not positive or
+	 * squashAfter is negative.
+	 */
+	public RetentionPolicy(int keepLast, boolean dailyCheckpoints, long squashAfter) {
+		if(keepLast <= 0||squashAfter < 0) throw new IllegalArgumentException();
+		this.keepLast = keepLast;
+		this.dailyCheckpoints = dailyCheckpoints;
+		this.squashAfter = squashAfter;
+	}
+
+	/**
+	 * Returns the number of newest versions always kept.
+	 * @return The count kept.
+	 */
+	public int getKeepLast() {
+		return this.keepLast;
+	}
+
+	/**
+	 * Checks if the last version of every day is kept.
+	 * @return True if daily checkpoints are kept, false otherwise.
+	 */
+	public boolean keepsDailyCheckpoints() {
+		return this.dailyCheckpoints;
+	}
+
+	/**
+	 * Returns the age past which versions are squashed into one.
+	 * @return The age in milliseconds, {@link #NEVER} if never.
+	 */
+	public long getSquashAfter() {
+		return this.squashAfter;
+	}
+
+	/**
+	 * Selects the versions of a history to keep.
+	 * @param timestamps The times the versions were made, oldest first.
+	 * @param now The current time in milliseconds.
+	 * @return For every version, true if it is kept.
+	 * @throws IllegalArgumentException if timestamps is null.
+	 */
+	public boolean[] select(long[] timestamps, long now) {
+		if(timestamps==null) throw new IllegalArgumentException();
+		int n = timestamps.length;
+		boolean[] keep = new boolean[n];
+		long cutoff = this.squashAfter==NEVER ? Long.MIN_VALUE : now - this.squashAfter;
+		TimeZone zone = TimeZone.getDefault();
+		boolean squashed = false;
+		for(int i = n-1; i >= 0; i--){
+			if(i >= n - this.keepLast){
+				keep[i] = true;
+			}
+			else if(timestamps[i] < cutoff){
+				// The newest of the old versions stands for all of them.
+				keep[i] = !squashed;
+				squashed = true;
+			}
+			else if(this.dailyCheckpoints){
+				keep[i] = day(timestamps[i], zone)!=day(timestamps[i+1], zone);
+			}
+		}
+		return keep;
+	}
+
+	/* Returns the number of the local day a time falls in. */
+	private static long day(long time, TimeZone zone) {
+		long local = time + zone.getOffset(time);
+		return local >= 0 ? local / DAY : (local + 1) / DAY - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "keep last " + this.keepLast + (this.dailyCheckpoints ? ", daily checkpoints" : "")
+				+ (this.squashAfter==NEVER ? "" : ", squash after " + this.squashAfter + " ms");
+	}
+}
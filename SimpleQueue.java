@@ -1,15 +1,30 @@
 
-public class SimpleQueue<E> implements QueueADT<E>{
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A queue kept in a circular array whose length is a power of two, so 
+ * indices wrap with a mask. The array doubles when full and halves when a 
+ * quarter full; dequeued slots are cleared so the queue holds no reference 
+ * to the items it gave out.
+ * @author
+ *
+ */
+public class SimpleQueue<E> implements QueueADT<E>, Iterable<E>{
 	private E items[];
 	private int numItems;
 	private int frontIndex;
-	private int rearIndex;
-	private static final int INITSIZE = 10;
+	/* items.length - 1; index & mask wraps an index around the array. */
+	private int mask;
+	/* Counts the changes to the queue, so iterators can detect them. */
+	private int modCount;
+	private static final int INITSIZE = 16;
 	public SimpleQueue(){
 		this.items = (E[])(new Object[INITSIZE]);
 		this.numItems = 0;
 		this.frontIndex = 0;
-		this.rearIndex = this.frontIndex + this.numItems - 1;
+		this.mask = INITSIZE - 1;
 	}
 	@Override
 	public boolean isEmpty() {
@@ -20,23 +35,22 @@ public class SimpleQueue<E> implements QueueADT<E>{
 	public E dequeue() throws EmptyQueueException {
 		if(isEmpty()) throw new EmptyQueueException();
 		E dequeued = this.items[this.frontIndex];
+		this.items[this.frontIndex] = null;
 		this.numItems--;
-		this.frontIndex++;
+		this.frontIndex = (this.frontIndex + 1) & this.mask;
+		this.modCount++;
+		if(this.items.length > INITSIZE && this.numItems <= this.items.length >> 2){
+			resize(this.items.length >> 1);
+		}
 		return dequeued;
 	}
 
 	@Override
 	public void enqueue(E item) {
-		if(this.items.length==this.numItems){
-			E[] newItems = (E[])(new Object[this.items.length*2]);
-			System.arraycopy(this.items, this.frontIndex, newItems, this.frontIndex, this.items.length-this.frontIndex);
-			if(this.frontIndex != 0) System.arraycopy(this.items, 0, newItems, this.items.length, this.frontIndex);
-			this.items = newItems;
-			this.rearIndex = this.frontIndex + this.numItems-1;
-		}
-		this.rearIndex++;
-		this.items[this.rearIndex] = item;
+		if(this.items.length==this.numItems) resize(this.items.length << 1);
+		this.items[(this.frontIndex + this.numItems) & this.mask] = item;
 		this.numItems++;
+		this.modCount++;
 	}
 
 	@Override
@@ -49,11 +63,63 @@ public class SimpleQueue<E> implements QueueADT<E>{
 	public int size() {
 		return this.numItems;
 	}
+
+	/**
+	 * Returns an item of the queue without removing it.
+	 * @param index The position of the item, 0 being the front.
+	 * @return The item.
+	 * @throws IndexOutOfBoundsException if index is negative or not less 
+	 * than the size.
+	 */
+	public E get(int index) {
+		if(index < 0 || index >= this.numItems) throw new IndexOutOfBoundsException();
+		return this.items[(this.frontIndex + index) & this.mask];
+	}
+
+	/**
+	 * Returns an iterator over the items, from the front to the rear. It 
+	 * reads the array in place and fails if the queue changes meanwhile.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private int next = 0;
+			private final int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < numItems;
+			}
+
+			@Override
+			public E next() {
+				if(modCount!=this.expectedModCount) throw new ConcurrentModificationException();
+				if(this.next >= numItems) throw new NoSuchElementException();
+				return items[(frontIndex + this.next++) & mask];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/* Moves the items, front first, to an array of a power of two length. */
+	private void resize(int capacity) {
+		E[] newItems = (E[])(new Object[capacity]);
+		int firstPart = Math.min(this.numItems, this.items.length - this.frontIndex);
+		System.arraycopy(this.items, this.frontIndex, newItems, 0, firstPart);
+		System.arraycopy(this.items, 0, newItems, firstPart, this.numItems - firstPart);
+		this.items = newItems;
+		this.frontIndex = 0;
+		this.mask = capacity - 1;
+	}
 	
 	public String toString(){
-		String theItems = "";
+		StringBuilder theItems = new StringBuilder();
 		for(int i = 0; i < this.numItems; i++)
-			theItems = theItems + this.items[i].toString() + "\n";
-		return theItems;
+			theItems.append(this.items[(this.frontIndex + i) & this.mask].toString()).append("\n");
+		return theItems.toString();
 	}
 }
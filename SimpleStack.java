@@ -1,7 +1,21 @@
 
-public class SimpleStack<E> implements StackADT<E>{
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A stack kept in an array. The array doubles when full and halves once a 
+ * quarter full, so a long run of pops gives the memory back without 
+ * resizing back and forth around one size. Popped slots are cleared.
+ * @author
+ *
+ */
+public class SimpleStack<E> implements StackADT<E>, Iterable<E>{
 	private E items[];
 	private int numItems;
+	/* Counts the changes to the stack, so iterators can detect them. */
+	private int modCount;
 	private static final int INITSIZE = 10;
 	public SimpleStack(){
 		this.items = (E[])(new Object[INITSIZE]);
@@ -18,37 +32,109 @@ public class SimpleStack<E> implements StackADT<E>{
 		return this.items[this.numItems-1];
 	}
 
+	/**
+	 * Returns an item below the top without removing it.
+	 * @param depth The number of items above it; 0 is the top.
+	 * @return The item.
+	 * @throws EmptyStackException if the stack holds depth items or fewer.
+	 * @throws IllegalArgumentException if depth is negative.
+	 */
+	public E peek(int depth) throws EmptyStackException {
+		if(depth < 0) throw new IllegalArgumentException();
+		if(depth >= this.numItems) throw new EmptyStackException();
+		return this.items[this.numItems-1-depth];
+	}
+
 	@Override
 	public E pop() throws EmptyStackException {
 		if(isEmpty()) throw new EmptyStackException();
 		E returned = this.items[this.numItems-1];
 		this.items[this.numItems-1] = null;
 		this.numItems--;
+		this.modCount++;
+		shrink();
+		return returned;
+	}
+
+	/**
+	 * Removes a number of items from the top at once.
+	 * @param count The number of items to remove.
+	 * @return The last item removed, the one count - 1 below the top.
+	 * @throws EmptyStackException if the stack holds fewer than count 
+	 * items; the stack is left as it is.
+	 * @throws IllegalArgumentException if count is not positive.
+	 */
+	public E popN(int count) throws EmptyStackException {
+		if(count <= 0) throw new IllegalArgumentException();
+		if(count > this.numItems) throw new EmptyStackException();
+		E returned = this.items[this.numItems-count];
+		Arrays.fill(this.items, this.numItems-count, this.numItems, null);
+		this.numItems -= count;
+		this.modCount++;
+		shrink();
 		return returned;
 	}
 
 	@Override
 	public void push(E item) {
 		if(this.items.length==this.numItems){
-			E[] newItems = (E[])(new Object[2*this.items.length]);
-			for(int i = 0; i < this.items.length; i++)
-				newItems[i] = this.items[i];
-			this.items = newItems;
+			this.items = Arrays.copyOf(this.items, 2*this.items.length);
 		}
 		this.items[this.numItems] = item;
 		this.numItems++;
+		this.modCount++;
 	}
 
 	@Override
 	public int size() {
 		return this.numItems;
 	}
+
+	/**
+	 * Returns an iterator over the items, from the top down. It reads the 
+	 * array in place and fails if the stack changes meanwhile.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private int next = numItems - 1;
+			private final int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return this.next >= 0;
+			}
+
+			@Override
+			public E next() {
+				if(modCount!=this.expectedModCount) throw new ConcurrentModificationException();
+				if(this.next < 0) throw new NoSuchElementException();
+				return items[this.next--];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/* Halves the array while it is a quarter full, in one copy, so popN 
+	 * gives back all the memory at once; after halving it is at most half 
+	 * full, so it takes many pushes to grow again. */
+	private void shrink() {
+		int length = this.items.length;
+		while(length > INITSIZE && this.numItems <= length/4){
+			length = Math.max(INITSIZE, length/2);
+		}
+		if(length < this.items.length) this.items = Arrays.copyOf(this.items, length);
+	}
 	
 	public String toString(){
-		String theItems = "";
+		StringBuilder theItems = new StringBuilder();
 		for(int i = this.numItems-1; i >= 0; i--)
-			theItems = theItems + this.items[i].toString() + "\n";
-		return theItems;
+			theItems.append(this.items[i].toString()).append("\n");
+		return theItems.toString();
 	}
 	
 }
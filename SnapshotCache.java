@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the materialised documents of repo versions, keyed by
+ * repo name and version. Rebuilding an old version applies chains of deltas
+ * and inflates contents for every document, so versions read again and
+ * again, such as a release many users check out, are kept materialised.
+ * The cache is bounded by the bytes the cached names and contents take,
+ * and evicts the versions read least recently first. A cached version is
+ * only served for the very snapshot it was built from, so a version number
+ * reused after a revert, or a repo deleted and made again, is never served
+ * stale contents.
+ * @author
+ *
+ */
+public class SnapshotCache {
+
+	/* The default most bytes the cache holds. */
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	/* The bytes counted for every cached document besides its characters. */
+	private static final int DOC_OVERHEAD = 64;
+
+	/* The cache the repos share. */
+	private static final SnapshotCache SHARED = new SnapshotCache(DEFAULT_MAX_BYTES);
+
+	/* The most bytes the cache holds. */
+	private final long maxBytes;
+
+	/* The cached versions, in access order. Guarded by the cache. */
+	private final LinkedHashMap<Key, Materialised> entries;
+
+	/* The bytes the cached versions take. Guarded by the cache. */
+	private long bytes;
+
+	/* The number of reads served from the cache. Guarded by the cache. */
+	private long hits;
+
+	/* The number of reads which materialised a version. Guarded by the cache. */
+	private long misses;
+
+	/* The number of versions evicted to make room. Guarded by the cache. */
+	private long evictions;
+
+	/**
+	 * Constructs an empty cache.
+	 * @param maxBytes The most bytes the cached names and contents take,
+	 * two per character.
+	 * @throws IllegalArgumentException if maxBytes is negative.
+	 */
+	public SnapshotCache(long maxBytes) {
+		if(maxBytes < 0) throw new IllegalArgumentException();
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<Key, Materialised>(16, 0.75f, true);
+		this.bytes = 0;
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+	}
+
+	/**
+	 * Returns the cache the repos share.
+	 * @return The shared cache.
+	 */
+	public static SnapshotCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns a copy of the version a snapshot captures, from the cache if
+	 * it was materialised already. Every call returns new documents, which
+	 * may be changed freely.
+	 * @param snapshot The snapshot of the version.
+	 * @return A new repo copy of the version.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public RepoCopy get(RepoSnapshot snapshot) {
+		if(snapshot==null) throw new IllegalArgumentException();
+		Key key = new Key(snapshot.getRepoName(), snapshot.getVersion());
+		Materialised cached;
+		synchronized (this) {
+			cached = this.entries.get(key);
+			if(cached!=null && cached.docs==snapshot.getDocHashes()) this.hits++;
+			else{
+				cached = null;
+				this.misses++;
+			}
+		}
+		if(cached==null){
+			// Built without the lock, so other reads don't wait on it.
+			cached = new Materialised(snapshot);
+			put(key, cached);
+		}
+		return cached.toRepoCopy(snapshot);
+	}
+
+	/* Caches a materialised version, evicting the least recently read ones
+	 * to make room. A version larger than the whole cache is not kept. */
+	private synchronized void put(Key key, Materialised materialised) {
+		if(materialised.bytes > this.maxBytes) return;
+		Materialised old = this.entries.put(key, materialised);
+		if(old!=null) this.bytes -= old.bytes;
+		this.bytes += materialised.bytes;
+		Iterator<Materialised> eldest = this.entries.values().iterator();
+		while(this.bytes > this.maxBytes){
+			this.bytes -= eldest.next().bytes;
+			eldest.remove();
+			this.evictions++;
+		}
+	}
+
+	/**
+	 * Drops every cached version of a repo.
+	 * @param repoName The name of the repo.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public synchronized void invalidate(String repoName) {
+		if(repoName==null) throw new IllegalArgumentException();
+		Iterator<Map.Entry<Key, Materialised>> it = this.entries.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Key, Materialised> e = it.next();
+			if(e.getKey().repoName.equals(repoName)){
+				this.bytes -= e.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops every cached version. The counters are kept.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.bytes = 0;
+	}
+
+	/**
+	 * Returns the most bytes the cache holds.
+	 * @return The byte bound.
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * Returns the bytes the cached versions take.
+	 * @return The byte count.
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Returns the number of versions cached.
+	 * @return The version count.
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Returns the number of reads served from the cache.
+	 * @return The hit count.
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * Returns the number of reads which had to materialise a version.
+	 * @return The miss count.
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * Returns the number of versions evicted to make room.
+	 * @return The eviction count.
+	 */
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.entries.size() + " version(s), " + this.bytes + "/" + this.maxBytes + " byte(s), "
+				+ this.hits + " hit(s), " + this.misses + " miss(es), " + this.evictions + " eviction(s)";
+	}
+
+	/**
+	 * The name of a repo and one of its versions.
+	 */
+	private static final class Key {
+		private final String repoName;
+		private final int version;
+
+		private Key(String repoName, int version) {
+			this.repoName = repoName;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key other = (Key)o;
+			return this.version==other.version && this.repoName.equals(other.repoName);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31*this.repoName.hashCode() + this.version;
+		}
+	}
+
+	/**
+	 * The names and contents of the documents of a version.
+	 */
+	private static final class Materialised {
+		/* The document map of the snapshot the version was built from. */
+		private final PersistentDocMap docs;
+		private final String[] names;
+		private final String[] contents;
+		private final long bytes;
+
+		private Materialised(RepoSnapshot snapshot) {
+			List<Document> list = snapshot.getDocuments();
+			this.docs = snapshot.getDocHashes();
+			this.names = new String[list.size()];
+			this.contents = new String[list.size()];
+			long size = 0;
+			for(int i = 0; i < list.size(); i++){
+				this.names[i] = list.get(i).getName();
+				this.contents[i] = list.get(i).getContent();
+				size += DOC_OVERHEAD + 2L*(this.names[i].length() + this.contents[i].length());
+			}
+			this.bytes = size;
+		}
+
+		/* Builds a copy of the version out of new documents. */
+		RepoCopy toRepoCopy(RepoSnapshot snapshot) {
+			List<Document> list = new ArrayList<Document>(this.names.length);
+			for(int i = 0; i < this.names.length; i++){
+				list.add(new Document(this.names[i], this.contents[i], snapshot.getRepoName()));
+			}
+			return new RepoCopy(snapshot.getRepoName(), snapshot.getVersion(), list);
+		}
+	}
+}
@@ -1,9 +1,16 @@
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a user. Maintains the list of subscribed repositories, working
- * copy of the subscribed repositories and their changelist. 
+ * copy of the subscribed repositories and their changelist. A user may be
+ * used from several threads; its methods are synchronized on the user.
+ * The registry of users and repos is never locked while a user is: locks 
+ * are taken registry first, then a user.
  * @author
  *
  */
@@ -12,14 +19,15 @@ public class User {
 	/* The name of the user. It's a unique identifier for a user. */
 	private final String userName;
 
-	/*  The list of names of the repositories to which the user is subscribed. */
-	private final List<String> subRepos;
+	/*  The names of the repositories to which the user is subscribed, in 
+	 * the order they were subscribed. */
+	private final Set<String> subRepos;
 
-	/* The list of all pending check-ins not yet made by the user. */
-	private final List<ChangeSet> pendingCheckIns;
+	/* The pending check-ins not yet made by the user, by repository name. */
+	private final Map<String, ChangeSet> pendingCheckIns;
 
-	/* The list of all local working copies of the user. */
-	private final List<RepoCopy> workingCopies;
+	/* The local working copies of the user, by repository name. */
+	private final Map<String, WorkingCopy> workingCopies;
 
 	/**
 	 * Constructor for User. 
@@ -28,13 +36,10 @@ public class User {
 	 */
 	public User(String userName) {
 
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
 		this.userName = userName;
-		this.subRepos = new ArrayList<String>();
-		this.pendingCheckIns = new ArrayList<ChangeSet>();
-		this.workingCopies = new ArrayList<RepoCopy>();
+		this.subRepos = new LinkedHashSet<String>();
+		this.pendingCheckIns = new LinkedHashMap<String, ChangeSet>();
+		this.workingCopies = new LinkedHashMap<String, WorkingCopy>();
 	}
 
 	/**
@@ -46,10 +51,11 @@ public class User {
 	}
 
 	/**
-	 * Returns a copy of list of subscribed repositories.
+	 * Returns a copy of the list of subscribed repositories, in the order 
+	 * they were subscribed. Later subscriptions don't change the copy.
 	 * @return The subscribed repo list.
 	 */
-	public List<String> getAllSubRepos() {
+	public synchronized List<String> getAllSubRepos() {
 		return new ArrayList<String>(this.subRepos);
 	}
 
@@ -59,16 +65,9 @@ public class User {
 	 * @return The working copy if exists, null otherwise.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public RepoCopy getWorkingCopy(String repoName) {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
+	public synchronized WorkingCopy getWorkingCopy(String repoName) {
 		if(repoName==null) throw new IllegalArgumentException();
-		for(int i = 0; i < this.workingCopies.size(); i++){
-			if(this.workingCopies.get(i).getReponame().equals(repoName))
-				return this.workingCopies.get(i);
-		}
-		return null;
+		return this.workingCopies.get(repoName);
 	}
 
 	/**
@@ -77,15 +76,13 @@ public class User {
 	 * @param repoName The name of the repository to subscribe.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public void subscribeRepo(String repoName) {
+	public synchronized void subscribeRepo(String repoName) {
 
 		if (repoName == null) {
 			throw new IllegalArgumentException();
 		}
 
-		if (!this.subRepos.contains(repoName)) {
-			this.subRepos.add(repoName); 
-		}
+		this.subRepos.add(repoName);
 	}
 
 	/**
@@ -94,20 +91,35 @@ public class User {
 	 * @param repoName The name of the repository to unsubscribe. 
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public void unsubscribeRepo(String repoName) {
+	public synchronized void unsubscribeRepo(String repoName) {
 		if (repoName == null) {
 			throw new IllegalArgumentException();
 		}
 		this.subRepos.remove(repoName);
 	}
 
+	/**
+	 * Drops a repository the user no longer reads: un-subscribes the user 
+	 * and discards the working copy and the pending check-in of it.
+	 * @param repoName The name of the repository to drop.
+	 * @throws IllegalArgumentException if any argument is null. 
+	 */
+	public synchronized void dropRepo(String repoName) {
+		if (repoName == null) {
+			throw new IllegalArgumentException();
+		}
+		this.subRepos.remove(repoName);
+		this.workingCopies.remove(repoName);
+		this.pendingCheckIns.remove(repoName);
+	}
+
 	/**
 	 * Checks if the user is subscribed to a particular repository.
 	 * @param repoName The name of the repository to subscribe.
 	 * @return True if the repository is subscribed, false otherwise.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public boolean isSubRepo(String repoName) {
+	public synchronized boolean isSubRepo(String repoName) {
 		if (repoName == null) {
 			throw new IllegalArgumentException();
 		}
@@ -123,22 +135,30 @@ public class User {
 	 * @param repoName The name of the repository on which the change is done.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public void addToPendingCheckIn(Document doc, Change.Type type, String repoName) {
-		// TODO: Implement this method. 
+	public synchronized void addToPendingCheckIn(Document doc, Change.Type type, String repoName) {
 		if(doc==null||type==null||repoName==null) throw new IllegalArgumentException();
-		boolean create = true;
-		for(int i = 0; i < this.pendingCheckIns.size(); i++){
-			if(this.pendingCheckIns.get(i).getReponame().equals(repoName)){
-				create = false;
-				this.pendingCheckIns.get(i).addChange(doc, type);
-				break;
-			}
-		}
-		if(create){
-			ChangeSet added = new ChangeSet(repoName);
-			added.addChange(doc, type);
-			this.pendingCheckIns.add(added);
+		addToPendingCheckIn(doc, type, repoName, null);
+	}
+
+	/**
+	 * Adds a new change (add, edit or delete) to the pending checkIn for the 
+	 * repository, with the content the document had in the working copy 
+	 * before the change. If a checkIn does not exits, a new checkIn is
+	 * created.
+	 * @param doc The document added, deleted or edited.
+	 * @param type The type of change.
+	 * @param repoName The name of the repository on which the change is done.
+	 * @param baseContent The content before the change, or null if unknown.
+	 * @throws IllegalArgumentException if doc, type or repoName is null. 
+	 */
+	public synchronized void addToPendingCheckIn(Document doc, Change.Type type, String repoName, String baseContent) {
+		if(doc==null||type==null||repoName==null) throw new IllegalArgumentException();
+		ChangeSet pending = this.pendingCheckIns.get(repoName);
+		if(pending==null){
+			pending = new ChangeSet(repoName, this.userName);
+			this.pendingCheckIns.put(repoName, pending);
 		}
+		pending.addChange(doc, type, baseContent);
 	}
 
 	/**
@@ -148,76 +168,154 @@ public class User {
 	 * null otherwise.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
-	public ChangeSet getPendingCheckIn(String repoName) {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
+	public synchronized ChangeSet getPendingCheckIn(String repoName) {
 		if(repoName==null) throw new IllegalArgumentException();
-		for(int i = 0; i < this.pendingCheckIns.size(); i++){
-			if(this.pendingCheckIns.get(i).getReponame().equals(repoName))
-				return this.pendingCheckIns.get(i);
-		}
-		return null;
+		return this.pendingCheckIns.get(repoName);
 	}
 
 	/**
 	 * Checks in or queues a pending checkIn into a repository and removes it
-	 * from the local pending CheckIns list.   
+	 * from the local pending CheckIns list. The repository is found before 
+	 * the user is locked, so the registry is always locked before a user.
 	 * @param repoName The name of repository.
-	 * @return NO_LOCAL_CHANGES, if there are no pending changes for the
-	 * repository, SUCCESS otherwise.
+	 * @return REPO_NOT_FOUND if the repository does not exist, 
+	 * NO_LOCAL_CHANGES, if there are no pending changes for the
+	 * repository, QUEUE_FULL if the repository's queue of check-ins is 
+	 * full, SUCCESS otherwise.
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
 	public ErrorType checkIn(String repoName) {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
 		if(repoName==null) throw new IllegalArgumentException();
-		ChangeSet checkedIn = this.getPendingCheckIn(repoName);
-		if(checkedIn!=null){
-			VersionControlDb.findRepo(repoName).queueCheckIn(checkedIn);
-			this.pendingCheckIns.remove(checkedIn);
-			return ErrorType.SUCCESS;
-		}
-		else return ErrorType.NO_LOCAL_CHANGES;
+		return checkIn(repoName, findRepo(repoName));
+	}
+
+	/**
+	 * Checks in or queues the pending checkIn for a repository already 
+	 * found, as {@link #checkIn(String)} does.
+	 * @param repoName The name of repository.
+	 * @param repo The repository, or null if it was deleted.
+	 * @return REPO_NOT_FOUND if the repository is null, NO_LOCAL_CHANGES, 
+	 * if there are no pending changes for the repository, QUEUE_FULL if the 
+	 * repository's queue of check-ins is full, SUCCESS otherwise.
+	 * @throws IllegalArgumentException if repoName is null. 
+	 */
+	public synchronized ErrorType checkIn(String repoName, Repo repo) {
+		if(repoName==null) throw new IllegalArgumentException();
+		if(repo==null) return ErrorType.REPO_NOT_FOUND;
+		ChangeSet checkedIn = this.pendingCheckIns.get(repoName);
+		if(checkedIn==null) return ErrorType.NO_LOCAL_CHANGES;
+		// A check-in the queue has no room for stays pending, to retry.
+		if(!repo.queueCheckIn(checkedIn)) return ErrorType.QUEUE_FULL;
+		this.pendingCheckIns.remove(repoName);
+		WorkingCopy workingCopy = this.workingCopies.get(repoName);
+		if(workingCopy!=null) workingCopy.markCheckedIn();
+		return ErrorType.SUCCESS;
 	}
 
 	/**
 	 * Gets a latest version of the documents from the repository and puts
 	 * them onto a working copy, if the user is currently subscribed to the
 	 * repository. When the latest version is checked out, a new working copy 
-	 * is created and existing one is deleted.
+	 * is created and existing one is deleted. The working copy shares the 
+	 * documents of the latest version until they are changed.
 	 * @param repoName The name of the repository to check out.
 	 * @return REPO_NOT_SUBSCRIBED if the repository is not subscribed, 
-	 * SUCCESS otherwise. 
+	 * REPO_NOT_FOUND if it does not exist, SUCCESS otherwise. 
 	 * @throws IllegalArgumentException if any argument is null. 
 	 */
 	public ErrorType checkOut (String repoName) {
-		// TODO: Implement this method. The following lines 
-		// are just meant for the method to compile. You can 
-		// remove or edit it in whatever way you like.
+		if(repoName==null) throw new IllegalArgumentException();
+		return checkOut(repoName, findRepo(repoName));
+	}
+
+	/**
+	 * Checks out the latest version of a repository already found, as 
+	 * {@link #checkOut(String)} does.
+	 * @param repoName The name of the repository to check out.
+	 * @param repo The repository, or null if it was deleted.
+	 * @return REPO_NOT_SUBSCRIBED if the repository is not subscribed, 
+	 * REPO_NOT_FOUND if the repository is null, SUCCESS otherwise. 
+	 * @throws IllegalArgumentException if repoName is null. 
+	 */
+	public synchronized ErrorType checkOut(String repoName, Repo repo) {
 		if(repoName==null) throw new IllegalArgumentException();
 		if(!this.isSubRepo(repoName)) return ErrorType.REPO_NOT_SUBSCRIBED;
-		else{
-			if(this.getWorkingCopy(repoName)!=null) this.workingCopies.remove(getWorkingCopy(repoName));
-			if(this.getPendingCheckIn(repoName)!=null) this.pendingCheckIns.remove(getPendingCheckIn(repoName));
-			RepoCopy checkedOut = new RepoCopy(repoName, VersionControlDb.findRepo(repoName).getVersion(), VersionControlDb.findRepo(repoName).getDocuments());
-			this.workingCopies.add(checkedOut);
-			return ErrorType.SUCCESS;
-		}
+		if(repo==null) return ErrorType.REPO_NOT_FOUND;
+		this.workingCopies.remove(repoName);
+		this.pendingCheckIns.remove(repoName);
+		this.workingCopies.put(repoName, new WorkingCopy(repo.getHead()));
+		return ErrorType.SUCCESS;
+	}
+
+	/**
+	 * Brings the working copy of a repository up to its latest version. 
+	 * Only the documents changed since the version of the working copy are 
+	 * updated; the local changes and the pending check-in are kept. The 
+	 * documents changed both locally and in the repository are reported by 
+	 * the working copy's conflicts. Without a working copy, the repository 
+	 * is checked out.
+	 * @param repoName The name of the repository to update.
+	 * @return REPO_NOT_SUBSCRIBED if the repository is not subscribed, 
+	 * REPO_NOT_FOUND if it does not exist, SUCCESS otherwise. 
+	 * @throws IllegalArgumentException if any argument is null. 
+	 */
+	public ErrorType update(String repoName) {
+		if(repoName==null) throw new IllegalArgumentException();
+		return update(repoName, findRepo(repoName));
+	}
+
+	/**
+	 * Updates the working copy of a repository already found, as 
+	 * {@link #update(String)} does.
+	 * @param repoName The name of the repository to update.
+	 * @param repo The repository, or null if it was deleted.
+	 * @return REPO_NOT_SUBSCRIBED if the repository is not subscribed, 
+	 * REPO_NOT_FOUND if the repository is null, SUCCESS otherwise. 
+	 * @throws IllegalArgumentException if repoName is null. 
+	 */
+	public synchronized ErrorType update(String repoName, Repo repo) {
+		if(repoName==null) throw new IllegalArgumentException();
+		if(!this.isSubRepo(repoName)) return ErrorType.REPO_NOT_SUBSCRIBED;
+		if(repo==null) return ErrorType.REPO_NOT_FOUND;
+		WorkingCopy current = this.workingCopies.get(repoName);
+		if(current==null) return this.checkOut(repoName, repo);
+		this.workingCopies.put(repoName, current.update(repo.getHead()));
+		return ErrorType.SUCCESS;
+	}
+
+	/* Returns the working copies, by repository name. */
+	synchronized Map<String, WorkingCopy> getWorkingCopies() {
+		return new LinkedHashMap<String, WorkingCopy>(this.workingCopies);
+	}
+
+	/* Returns the pending check-ins, by repository name. */
+	synchronized Map<String, ChangeSet> getPendingCheckIns() {
+		return new LinkedHashMap<String, ChangeSet>(this.pendingCheckIns);
+	}
+
+	/* Puts back a working copy and pending check-in restored from a journal 
+	 * snapshot; pending may be null. */
+	synchronized void restore(String repoName, WorkingCopy workingCopy, ChangeSet pending) {
+		if(workingCopy!=null) this.workingCopies.put(repoName, workingCopy);
+		if(pending!=null) this.pendingCheckIns.put(repoName, pending);
+	}
+
+	/* Finds a repository by name in the shared registry, without locking. */
+	private static Repo findRepo(String repoName) {
+		return Registry.shared().findRepo(repoName);
 	}
 
 	@Override
-	public String toString() {
-		String str = "=================================== \n";
-		str += "Username: " + this.userName + "\n"
-				+ "-----------Repos------------------ \n";
+	public synchronized String toString() {
+		StringBuilder str = new StringBuilder("=================================== \n");
+		str.append("Username: ").append(this.userName).append("\n")
+				.append("-----------Repos------------------ \n");
 		int count = 0;
 		for (String r : this.subRepos) {
-			str += ++count + ". " + r + "\n";
+			str.append(++count).append(". ").append(r).append("\n");
 		}
-		str += this.subRepos.size() + " repos(s) subscribed.\n"
-				+ "===================================";
-		return str;
+		str.append(this.subRepos.size()).append(" repos(s) subscribed.\n")
+				.append("===================================");
+		return str.toString();
 	}
 }
@@ -1,29 +1,100 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Version control application. Implements the command line utility
- * for Version control.
+ * for Version control. Every thread runs its own session, with its own
+ * input and output streams; the main thread's session is on the console.
  * @author
  *
  */
 public class VersionControlApp {
 
-	/* Scanner object on input stream. */
-	private static final Scanner scnr = new Scanner(System.in);
+	/* Scanner object on the console's input stream. */
+	private static final Scanner console = new Scanner(System.in);
+
+	/* Scanner object on input stream of the current thread's session. */
+	private static final ThreadLocal<Scanner> scnr = new ThreadLocal<Scanner>() {
+		@Override
+		protected Scanner initialValue() {
+			return console;
+		}
+	};
+
+	/* Output stream of the current thread's session. Nothing is printed 
+	 * before the journal is durable. */
+	private static final ThreadLocal<PrintStream> out = new ThreadLocal<PrintStream>() {
+		@Override
+		protected PrintStream initialValue() {
+			return new PrintStream(new JournalSyncStream(System.out), true);
+		}
+	};
+
+	/* Whether the current thread's session displays the prompts. */
+	private static final ThreadLocal<Boolean> showPrompts = new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return Boolean.TRUE;
+		}
+	};
+
+	/* The number of commands read by the current thread's session. */
+	private static final ThreadLocal<Integer> commands = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return 0;
+		}
+	};
+
+	/* The number of history entries the VH command lists at a time. */
+	private static final int HISTORY_PAGE_SIZE = 20;
+
+	/* The size of the output buffer of a script. */
+	private static final int SCRIPT_BUFFER_SIZE = 1 << 16;
+
+	/* The write-ahead log of state changes, null if persistence is off. */
+	private static Journal journal = null;
+
+	/* The lock changes hold when there is no journal to checkpoint; 
+	 * nobody takes it exclusively. */
+	private static final Lock NO_CHECKPOINTS = new ReentrantReadWriteLock().readLock();
+
+	/* The time between two cycles of the history collector. */
+	private static final long HISTORY_GC_PERIOD_MILLIS = 60 * 1000;
+
+	/* The thread pruning the history of every repo, null if not started. */
+	private static ScheduledExecutorService historyGc = null;
 
 	/**
 	 * An enumeration of all possible commands for Version control system.
 	 */
 	private enum Cmd {
 		AU, DU,	LI, QU, AR, DR, OR, LR, LO, SU, CO, CI, RC, VH, RE, LD, AD,
-		ED, DD, VD, HE, UN
+		ED, DD, VD, HE, UP, RA, DH, CV, RT, UN
 	}
 
 	/**
 	 * Displays the main menu help. 
 	 */
 	private static void displayMainMenu() {
-		System.out.println("\t Main Menu Help \n" 
+		out.get().println("\t Main Menu Help \n" 
 				+ "====================================\n"
 				+ "au <username> : Registers as a new user \n"
 				+ "du <username> : De-registers a existing user \n"
@@ -36,7 +107,7 @@ public class VersionControlApp {
 	 * Displays the user menu help. 
 	 */
 	private static void displayUserMenu() {
-		System.out.println("\t User Menu Help \n" 
+		out.get().println("\t User Menu Help \n" 
 				+ "====================================\n"
 				+ "ar <reponame> : To add a new repo \n"
 				+ "dr <reponame> : To delete a repo \n"
@@ -50,14 +121,19 @@ public class VersionControlApp {
 	 * Displays the repo menu help. 
 	 */
 	private static void displayRepoMenu() {
-		System.out.println("\t Repo Menu Help \n" 
+		out.get().println("\t Repo Menu Help \n" 
 				+ "====================================\n"
 				+ "su <username> : To subcribe users to repo \n"
 				+ "ci: To check in changes \n"
 				+ "co: To check out changes \n"
+				+ "up: To update to the latest version, keeping local changes \n"
 				+ "rc: To review change \n"
-				+ "vh: To get revision history \n"
+				+ "ra [n]: To approve all, or the next n, check-ins as one version \n"
+				+ "vh [version]: To get revision history, from a version on \n"
+				+ "dh <docname>: To get the revision history of a doc \n"
 				+ "re: To revert to previous version \n"
+				+ "cv <version>: To list the documents of a version \n"
+				+ "rt <version>: To restore a version as a new version \n"
 				+ "ld : To list documents \n"
 				+ "ed <docname>: To edit doc \n"
 				+ "ad <docname>: To add doc \n"
@@ -73,8 +149,10 @@ public class VersionControlApp {
 	 * @return The user entered command (Max: 2 words).
 	 */
 	private static String[] prompt(String prompt) {
-		System.out.print(prompt);
-		String line = scnr.nextLine();
+		checkpointJournal();
+		printPrompt(prompt);
+		String line = scnr.get().nextLine();
+		commands.set(commands.get() + 1);
 		String []words = line.trim().split(" ", 2);
 		return words;
 	}
@@ -85,13 +163,66 @@ public class VersionControlApp {
 	 * @return The user entered content.
 	 */
 	private static String promptFileContent(String prompt) {
-		System.out.println(prompt);
+		printPrompt(prompt + "\n");
 		String line = null;
-		String content = "";
-		while (!(line = scnr.nextLine()).equals("q")) {
-			content += line + "\n";
+		StringBuilder content = new StringBuilder();
+		while (!(line = scnr.get().nextLine()).equals("q")) {
+			content.append(line).append("\n");
+		}
+		return content.toString();
+	}
+
+	/**
+	 * Displays a prompt, unless the session runs without prompts.
+	 * @param prompt The prompt to be displayed.
+	 */
+	private static void printPrompt(String prompt) {
+		if (showPrompts.get()) {
+			out.get().print(prompt);
+		}
+	}
+
+	/**
+	 * Makes the changes logged so far durable. 
+	 * @throws IllegalStateException if the journal can't be written; the 
+	 * changes must not be acknowledged then.
+	 */
+	private static void syncJournal() {
+		if (journal != null) {
+			try {
+				journal.sync();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the lock a change holds, before any other lock, while it is 
+	 * made and logged, so a checkpoint of the journal never sees half of it.
+	 * @return The journal's change lock, or a lock nobody waits on if there 
+	 * is no journal.
+	 */
+	private static Lock changeLock() {
+		return journal != null ? journal.getChangeLock() : NO_CHECKPOINTS;
+	}
+
+	/**
+	 * Replaces the journal with a snapshot of the state, if enough changes 
+	 * were logged since the last one. Called between commands, when the 
+	 * session holds no lock. A failed checkpoint leaves the journal as it 
+	 * was, so the session goes on.
+	 */
+	private static void checkpointJournal() {
+		if (journal != null && journal.isCheckpointDue()) {
+			try {
+				journal.checkpoint();
+			}
+			catch (IOException e) {
+				System.err.println("Journal checkpoint failed: " + e.getMessage());
+			}
 		}
-		return content;
 	}
 
 	/**
@@ -101,7 +232,7 @@ public class VersionControlApp {
 	 */
 	private static boolean validateInput2(String[] input) {
 		if (input.length != 2) {
-			System.out.println(ErrorType.UNKNOWN_COMMAND);
+			out.get().println(ErrorType.UNKNOWN_COMMAND);
 			return false;
 		}
 		return true;
@@ -114,7 +245,7 @@ public class VersionControlApp {
 	 */
 	private static boolean validateInput1(String[] input) {
 		if (input.length != 1) {
-			System.out.println(ErrorType.UNKNOWN_COMMAND);
+			out.get().println(ErrorType.UNKNOWN_COMMAND);
 			return false;
 		}
 		return true;
@@ -134,6 +265,56 @@ public class VersionControlApp {
 		}
 	}
 
+	/**
+	 * Returns the repo with a particular name. Lookups in the shared 
+	 * registry of users and repos take no lock.
+	 * @param repoName The name of the repo.
+	 * @return The repo if found, null otherwise.
+	 */
+	private static Repo findRepo(String repoName) {
+		return Registry.shared().findRepo(repoName);
+	}
+
+	/**
+	 * Returns the repo a repo-menu command works on, printing 
+	 * REPO_NOT_FOUND if another session has deleted it since.
+	 * @param repoName The name of the repo.
+	 * @return The repo if found, null otherwise.
+	 */
+	private static Repo findOpenRepo(String repoName) {
+		Repo repo = findRepo(repoName);
+		if (repo == null) {
+			out.get().println(ErrorType.REPO_NOT_FOUND);
+		}
+		return repo;
+	}
+
+	/**
+	 * Returns a user's working copy of the repo a repo-menu command works 
+	 * on, printing REPO_NOT_FOUND if another session has deleted the repo 
+	 * since, which drops the working copy.
+	 * @param user The user.
+	 * @param repoName The name of the repo.
+	 * @return The working copy if found, null otherwise.
+	 */
+	private static WorkingCopy findWorkingCopy(User user, String repoName) {
+		WorkingCopy workingCopy = user.getWorkingCopy(repoName);
+		if (workingCopy == null) {
+			out.get().println(ErrorType.REPO_NOT_FOUND);
+		}
+		return workingCopy;
+	}
+
+	/**
+	 * Returns the user with a particular name. Lookups in the shared 
+	 * registry of users and repos take no lock.
+	 * @param userName The name of the user.
+	 * @return The user if found, null otherwise.
+	 */
+	private static User findUser(String userName) {
+		return Registry.shared().findUser(userName);
+	}
+
 	/**
 	 * Handles add user. Checks if a user with name "username" already exists; 
 	 * if exists the user is not registered. 
@@ -141,11 +322,22 @@ public class VersionControlApp {
 	 * @return USER_ALREADY_EXISTS if the user already exists, SUCCESS otherwise.
 	 */
 	private static ErrorType handleAddUser(String username) {
-		if (VersionControlDb.addUser(username) != null) {
-			return ErrorType.SUCCESS;
+		Registry registry = Registry.shared();
+		Lock change = changeLock();
+		change.lock();
+		try {
+			synchronized (registry) {
+				if (registry.addUser(username) != null) {
+					if (journal != null) journal.addUser(username);
+					return ErrorType.SUCCESS;
+				}
+				else {
+					return ErrorType.USERNAME_ALREADY_EXISTS;
+				}
+			}
 		}
-		else {
-			return ErrorType.USERNAME_ALREADY_EXISTS;
+		finally {
+			change.unlock();
 		}
 	}
 
@@ -156,13 +348,247 @@ public class VersionControlApp {
 	 * @return USER_NOT_FOUND if the user does not exists, SUCCESS otherwise.
 	 */
 	private static ErrorType handleDelUser(String username) {
-		User user = VersionControlDb.findUser(username); 
-		if (user == null) {
-			return ErrorType.USER_NOT_FOUND;
+		Registry registry = Registry.shared();
+		Lock change = changeLock();
+		change.lock();
+		try {
+			synchronized (registry) {
+				User user = registry.findUser(username); 
+				if (user == null) {
+					return ErrorType.USER_NOT_FOUND;
+				}
+				else {
+					registry.delUser(user);
+					if (journal != null) journal.delUser(username);
+					return ErrorType.SUCCESS;
+				}
+			}
 		}
-		else {
-			VersionControlDb.delUser(user);
-			return ErrorType.SUCCESS;
+		finally {
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Handles check out. The check-out is made and logged under the repo's 
+	 * read lock, so it is logged in order with the versions approved, and 
+	 * under the user's lock, in order with the user's changes.
+	 * @param user The user checking out.
+	 * @param repoName The name of the repo.
+	 * @param repo The repo, null if not found.
+	 * @return The result of {@link User#checkOut(String, Repo)}.
+	 */
+	private static ErrorType handleCheckOut(User user, String repoName, Repo repo) {
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repoName).readLock();
+		lock.lock();
+		try {
+			synchronized (user) {
+				ErrorType checkOut = user.checkOut(repoName, repo);
+				if (journal != null && checkOut.equals(ErrorType.SUCCESS)) journal.checkOut(user.getName(), repoName);
+				return checkOut;
+			}
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Handles update, under the same locks as check out.
+	 * @param user The user updating.
+	 * @param repoName The name of the repo.
+	 * @param repo The repo, null if not found.
+	 * @return The result of {@link User#update(String, Repo)}.
+	 */
+	private static ErrorType handleUpdate(User user, String repoName, Repo repo) {
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repoName).readLock();
+		lock.lock();
+		try {
+			synchronized (user) {
+				ErrorType update = user.update(repoName, repo);
+				if (journal != null && update.equals(ErrorType.SUCCESS)) journal.update(user.getName(), repoName);
+				return update;
+			}
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Handles check in. With a journal, the check-in is queued under the 
+	 * repo's read lock, so check-ins don't wait for each other but do wait 
+	 * for a review taking or approving one, and queued and logged under 
+	 * the journal's monitor, so they are logged in the order they are 
+	 * queued. Without one, queueing takes no lock.
+	 * @param user The user checking in.
+	 * @param repoName The name of the repo.
+	 * @return The result of {@link User#checkIn(String, Repo)}.
+	 */
+	private static ErrorType handleCheckIn(User user, String repoName) {
+		Repo repo = findRepo(repoName);
+		if (journal == null) {
+			return user.checkIn(repoName, repo);
+		}
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repoName).readLock();
+		lock.lock();
+		try {
+			synchronized (user) {
+				synchronized (journal) {
+					ErrorType checkIn = user.checkIn(repoName, repo);
+					if (checkIn.equals(ErrorType.SUCCESS)) journal.checkIn(user.getName(), repoName);
+					return checkIn;
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next queued check-in of a repo for review and logs it, 
+	 * under the repo's write lock.
+	 * @param user The user reviewing.
+	 * @param repo The repo.
+	 * @return The check-in, null if the user is not the admin or none is 
+	 * queued.
+	 */
+	private static ChangeSet handleTakeCheckIn(User user, Repo repo) {
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repo.getName()).writeLock();
+		lock.lock();
+		try {
+			ChangeSet checkIn = repo.getNextCheckIn(user);
+			if (journal != null && checkIn != null) journal.take(user.getName(), repo.getName());
+			return checkIn;
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Approves a check-in taken for review and logs it, under the repo's 
+	 * write lock.
+	 * @param user The user approving.
+	 * @param repo The repo.
+	 * @param checkIn The check-in.
+	 * @return The result of {@link Repo#approveCheckIn(User, ChangeSet)}.
+	 * @throws EmptyStackException 
+	 */
+	private static ErrorType handleApproveCheckIn(User user, Repo repo, ChangeSet checkIn) throws EmptyStackException {
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repo.getName()).writeLock();
+		lock.lock();
+		try {
+			ErrorType approve = repo.approveCheckIn(user, checkIn);
+			if (journal != null && approve.equals(ErrorType.SUCCESS)) {
+				journal.approve(user.getName(), repo.getName(), checkIn, repo.getHead().getEntry().getTimestamp());
+			}
+			return approve;
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Approves the next queued check-ins as one version and logs it, under 
+	 * the repo's write lock.
+	 * @param user The user approving.
+	 * @param repo The repo.
+	 * @param max The largest number of check-ins to approve.
+	 * @return The result of {@link Repo#approveCheckIns(User, int)}.
+	 */
+	private static List<ChangeSet> handleApproveCheckIns(User user, Repo repo, int max) {
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repo.getName()).writeLock();
+		lock.lock();
+		try {
+			List<ChangeSet> approved = repo.approveCheckIns(user, max);
+			if (journal != null && approved != null && !approved.isEmpty()) {
+				journal.approveCheckIns(user.getName(), repo.getName(), approved.size(),
+						repo.getHead().getEntry().getTimestamp());
+			}
+			return approved;
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Handles revert, logged under the repo's write lock with the version 
+	 * reverted to.
+	 * @param user The user reverting.
+	 * @param repo The repo, null if not found.
+	 * @return REPO_NOT_FOUND if repo is null, the result of 
+	 * {@link Repo#revert(User)} otherwise.
+	 */
+	private static ErrorType handleRevert(User user, Repo repo) {
+		if (repo == null) {
+			return ErrorType.REPO_NOT_FOUND;
+		}
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repo.getName()).writeLock();
+		lock.lock();
+		try {
+			ErrorType revert = repo.revert(user);
+			if (journal != null && revert.equals(ErrorType.SUCCESS)) {
+				journal.revert(user.getName(), repo.getName(), repo.getVersion());
+			}
+			return revert;
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
+		}
+	}
+
+	/**
+	 * Handles restoring an older version, logged under the repo's write 
+	 * lock.
+	 * @param user The user reverting.
+	 * @param repo The repo, null if not found.
+	 * @param version The version restored.
+	 * @return REPO_NOT_FOUND if repo is null, the result of 
+	 * {@link Repo#revertTo(User, int)} otherwise.
+	 */
+	private static ErrorType handleRevertTo(User user, Repo repo, int version) {
+		if (repo == null) {
+			return ErrorType.REPO_NOT_FOUND;
+		}
+		Lock change = changeLock();
+		change.lock();
+		Lock lock = RepoLocks.forRepo(repo.getName()).writeLock();
+		lock.lock();
+		try {
+			ErrorType revertTo = repo.revertTo(user, version);
+			if (journal != null && revertTo.equals(ErrorType.SUCCESS)) {
+				journal.revertTo(user.getName(), repo.getName(), version, repo.getHead().getEntry().getTimestamp());
+			}
+			return revertTo;
+		}
+		finally {
+			lock.unlock();
+			change.unlock();
 		}
 	}
 
@@ -175,9 +601,9 @@ public class VersionControlApp {
 	 * @throws EmptyStackException 
 	 */
 	private static ErrorType handleLogin(String username) throws EmptyStackException {
-		User currUser = VersionControlDb.findUser(username);
+		User currUser = findUser(username);
 		if (currUser != null) {
-			System.out.println(ErrorType.SUCCESS);
+			out.get().println(ErrorType.SUCCESS);
 			processUserMenu(currUser);
 			return ErrorType.SUCCESS;
 		}
@@ -187,7 +613,7 @@ public class VersionControlApp {
 	}
 
 	private static String approveOrNot(){
-		String answer = scnr.nextLine();
+		String answer = scnr.get().nextLine();
 		return answer;
 	}
 
@@ -208,17 +634,17 @@ public class VersionControlApp {
 			switch (cmd) {
 			case AU:
 				if (validateInput2(words)) {
-					System.out.println(handleAddUser(words[1].trim()));
+					out.get().println(handleAddUser(words[1].trim()));
 				}
 				break;
 			case DU:
 				if (validateInput2(words)) {
-					System.out.println(handleDelUser(words[1].trim())); 
+					out.get().println(handleDelUser(words[1].trim())); 
 				}
 				break;
 			case LI:
 				if (validateInput2(words)) {
-					System.out.println(handleLogin(words[1].trim()));
+					out.get().println(handleLogin(words[1].trim()));
 				}
 				break;
 			case HE:
@@ -232,7 +658,7 @@ public class VersionControlApp {
 				}
 				break;
 			default:
-				System.out.println(ErrorType.UNKNOWN_COMMAND);
+				out.get().println(ErrorType.UNKNOWN_COMMAND);
 			}
 
 		}
@@ -261,55 +687,81 @@ public class VersionControlApp {
 			switch (cmd) {
 			case AR:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle AR.
 					String repoName = words[1];
-					if(VersionControlDb.findRepo(repoName)!=null) System.out.println(ErrorType.REPONAME_ALREADY_EXISTS);
-					else {
-						logInUser.subscribeRepo(repoName);
-						VersionControlDb.addRepo(repoName, logInUser);
-						System.out.println(ErrorType.SUCCESS);
+					Registry registry = Registry.shared();
+					ErrorType addRepo;
+					Lock change = changeLock();
+					change.lock();
+					try {
+						synchronized (registry) {
+							// Subscribes the admin too, locking the registry first.
+							Repo added = registry.addRepo(repoName, logInUser);
+							if(added==null) addRepo = ErrorType.REPONAME_ALREADY_EXISTS;
+							else {
+								if (journal != null) {
+									journal.addRepo(repoName, logInUser.getName(), added.getHead().getEntry().getTimestamp());
+								}
+								addRepo = ErrorType.SUCCESS;
+							}
+						}
 					}
+					finally {
+						change.unlock();
+					}
+					// Acknowledged once the lock is released, since the 
+					// output waits for the journal to be synced.
+					out.get().println(addRepo);
 				}
 				break;
 			case DR:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle DR.
 					String repoName = words[1];
-					Repo theRepo = VersionControlDb.findRepo(repoName);
-					if(theRepo==null) System.out.println(ErrorType.REPO_NOT_FOUND);
-					else{
-						if(theRepo.getAdmin().equals(logInUser)){
-							VersionControlDb.delRepo(theRepo);
-							System.out.println(ErrorType.SUCCESS);
+					Registry registry = Registry.shared();
+					ErrorType delRepo;
+					Lock change = changeLock();
+					change.lock();
+					try {
+						synchronized (registry) {
+							Repo theRepo = registry.findRepo(repoName);
+							if(theRepo==null) delRepo = ErrorType.REPO_NOT_FOUND;
+							else{
+								if(theRepo.getAdmin().equals(logInUser)){
+									registry.delRepo(theRepo);
+									if (journal != null) journal.delRepo(repoName);
+									delRepo = ErrorType.SUCCESS;
+								}
+								else delRepo = ErrorType.ACCESS_DENIED;
+							}
 						}
-						else System.out.println(ErrorType.ACCESS_DENIED);
 					}
+					finally {
+						change.unlock();
+					}
+					out.get().println(delRepo);
 				}
 				break;
 			case LR:
 				if (validateInput1(words)) {
-					// TODO: Implement logic to handle LR.
-					System.out.println(logInUser.toString());
+					out.get().println(logInUser.toString());
 				}
 				break;
 			case OR:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle OR.
 					String repoName = words[1];
-					Repo open = VersionControlDb.findRepo(repoName);
-					if(open==null) System.out.println(ErrorType.REPO_NOT_FOUND);
+					Repo open = findRepo(repoName);
+					if(open==null) out.get().println(ErrorType.REPO_NOT_FOUND);
 					else if(logInUser.getWorkingCopy(repoName)==null){
-						ErrorType checkOut = logInUser.checkOut(repoName);
-						System.out.println(checkOut);
+						ErrorType checkOut = handleCheckOut(logInUser, repoName, open);
+						out.get().println(checkOut);
 						if(checkOut.equals(ErrorType.SUCCESS)){
 							processRepoMenu(logInUser, repoName);
-							System.out.println(ErrorType.SUCCESS);
+							out.get().println(ErrorType.SUCCESS);
 						}
 					}
 					else{
-						System.out.println(ErrorType.SUCCESS);
+						out.get().println(ErrorType.SUCCESS);
 						processRepoMenu(logInUser, repoName);
-						System.out.println(ErrorType.SUCCESS);
+						out.get().println(ErrorType.SUCCESS);
 					}
 				}
 				break;
@@ -324,7 +776,7 @@ public class VersionControlApp {
 				}
 				break;
 			default:
-				System.out.println(ErrorType.UNKNOWN_COMMAND);
+				out.get().println(ErrorType.UNKNOWN_COMMAND);
 			}
 
 		}
@@ -355,115 +807,268 @@ public class VersionControlApp {
 			switch (cmd) {
 			case SU:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle SU.
-					Repo theRepo = VersionControlDb.findRepo(currRepo);
+					Repo theRepo = findOpenRepo(currRepo);
+					if(theRepo==null) break;
 					if(theRepo.getAdmin().equals(logInUser)){
 						String userName = words[1];
-						User theUser = VersionControlDb.findUser(userName);
-						if(theUser==null) System.out.println(ErrorType.USER_NOT_FOUND);
+						User theUser = findUser(userName);
+						if(theUser==null) out.get().println(ErrorType.USER_NOT_FOUND);
 						else{
-							theUser.subscribeRepo(currRepo);
-							System.out.println(ErrorType.SUCCESS);
+							Registry registry = Registry.shared();
+							Lock change = changeLock();
+							change.lock();
+							try {
+								synchronized (registry) {
+									registry.subscribe(theUser, currRepo);
+									if (journal != null) journal.subscribe(currRepo, userName);
+								}
+							}
+							finally {
+								change.unlock();
+							}
+							out.get().println(ErrorType.SUCCESS);
 						}
 					}
-					else System.out.println(ErrorType.ACCESS_DENIED);
+					else out.get().println(ErrorType.ACCESS_DENIED);
 				}
 				break;
 			case LD:
 				if (validateInput1(words)) {
-					// TODO: Implement logic to handle LD.
-					System.out.println(logInUser.getWorkingCopy(currRepo).toString());
+					WorkingCopy theWorkingCopy = findWorkingCopy(logInUser, currRepo);
+					if(theWorkingCopy!=null) out.get().println(theWorkingCopy.toString());
 				}
 				break;
 			case ED:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle ED.
 					String docName = words[1];
-					Document theDoc = logInUser.getWorkingCopy(currRepo).getDoc(docName);
-					if(theDoc==null) System.out.println(ErrorType.DOC_NOT_FOUND);
+					WorkingCopy theWorkingCopy = findWorkingCopy(logInUser, currRepo);
+					if(theWorkingCopy==null) break;
+					Document previous = theWorkingCopy.getDoc(docName);
+					if(previous==null) out.get().println(ErrorType.DOC_NOT_FOUND);
 					else{
-						theDoc.setContent(promptFileContent("Enter the file content and press q to quit: "));
-						logInUser.addToPendingCheckIn(theDoc, Change.Type.EDIT, currRepo);
-						System.out.println(ErrorType.SUCCESS);
+						Document theDoc = new Document(docName, promptFileContent("Enter the file content and press q to quit: "), currRepo);
+						boolean current;
+						Lock change = changeLock();
+						change.lock();
+						try {
+							synchronized (logInUser) {
+								// The repo may have been deleted while the content was typed.
+								current = logInUser.getWorkingCopy(currRepo)==theWorkingCopy;
+								if(current){
+									theWorkingCopy.putDoc(theDoc);
+									logInUser.addToPendingCheckIn(theDoc, Change.Type.EDIT, currRepo, previous.getContent());
+									if (journal != null) journal.change(logInUser.getName(), currRepo, Change.Type.EDIT, theDoc);
+								}
+							}
+						}
+						finally {
+							change.unlock();
+						}
+						out.get().println(current ? ErrorType.SUCCESS : ErrorType.REPO_NOT_FOUND);
 					}
 				}					
 				break;
 			case AD:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle AD.
 					String docName = words[1];
-					if(logInUser.getWorkingCopy(currRepo).getDoc(docName)!=null) System.out.println(ErrorType.DOCNAME_ALREADY_EXISTS);
+					WorkingCopy theWorkingCopy = findWorkingCopy(logInUser, currRepo);
+					if(theWorkingCopy==null) break;
+					if(theWorkingCopy.getDoc(docName)!=null) out.get().println(ErrorType.DOCNAME_ALREADY_EXISTS);
 					else{
 						Document theDoc = new Document(docName, promptFileContent("Enter the file content and press q to quit: "), currRepo);
-						if(logInUser.getWorkingCopy(currRepo).addDoc(theDoc)){
-							logInUser.addToPendingCheckIn(theDoc, Change.Type.ADD, currRepo);
-							System.out.println(ErrorType.SUCCESS);
+						boolean added, current;
+						Lock change = changeLock();
+						change.lock();
+						try {
+							synchronized (logInUser) {
+								// The repo may have been deleted while the content was typed.
+								current = logInUser.getWorkingCopy(currRepo)==theWorkingCopy;
+								added = current && theWorkingCopy.addDoc(theDoc);
+								if(added){
+									logInUser.addToPendingCheckIn(theDoc, Change.Type.ADD, currRepo);
+									if (journal != null) journal.change(logInUser.getName(), currRepo, Change.Type.ADD, theDoc);
+								}
+							}
+						}
+						finally {
+							change.unlock();
 						}
+						if(!current) out.get().println(ErrorType.REPO_NOT_FOUND);
+						else if(added) out.get().println(ErrorType.SUCCESS);
 					}
 				}
 				break;
 			case DD:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle DD.
 					String docName = words[1];
-					RepoCopy theWorkingCopy = logInUser.getWorkingCopy(currRepo);
-					if(theWorkingCopy.getDoc(docName)==null) System.out.println(ErrorType.DOC_NOT_FOUND);
+					WorkingCopy theWorkingCopy = findWorkingCopy(logInUser, currRepo);
+					if(theWorkingCopy==null) break;
+					Document theDoc = theWorkingCopy.getDoc(docName);
+					if(theDoc==null) out.get().println(ErrorType.DOC_NOT_FOUND);
 					else{
-						Document theDoc = theWorkingCopy.getDoc(docName);
-						theWorkingCopy.delDoc(theDoc);
-						logInUser.addToPendingCheckIn(theDoc, Change.Type.DEL, currRepo);
-						System.out.println(ErrorType.SUCCESS);
+						boolean current;
+						Lock change = changeLock();
+						change.lock();
+						try {
+							synchronized (logInUser) {
+								current = logInUser.getWorkingCopy(currRepo)==theWorkingCopy;
+								if(current){
+									theWorkingCopy.delDoc(theDoc);
+									logInUser.addToPendingCheckIn(theDoc, Change.Type.DEL, currRepo);
+									if (journal != null) journal.change(logInUser.getName(), currRepo, Change.Type.DEL, theDoc);
+								}
+							}
+						}
+						finally {
+							change.unlock();
+						}
+						out.get().println(current ? ErrorType.SUCCESS : ErrorType.REPO_NOT_FOUND);
 					}
 				}
 				break;
 			case VD:
 				if (validateInput2(words)) {
-					// TODO: Implement logic to handle VD.
 					String docName = words[1];
-					RepoCopy theWorkingCopy = logInUser.getWorkingCopy(currRepo);
-					if(theWorkingCopy.getDoc(docName)==null) System.out.println(ErrorType.DOC_NOT_FOUND);
-					else System.out.println(theWorkingCopy.getDoc(docName).toString());
+					WorkingCopy theWorkingCopy = findWorkingCopy(logInUser, currRepo);
+					if(theWorkingCopy==null) break;
+					Document theDoc = theWorkingCopy.getDoc(docName);
+					if(theDoc==null) out.get().println(ErrorType.DOC_NOT_FOUND);
+					else out.get().println(theDoc.toString());
 				}
 				break;
 			case CI:
 				if (validateInput1(words)) {
-					// TODO: Implement logic to handle CI.
-					System.out.println(logInUser.checkIn(currRepo));
+					out.get().println(handleCheckIn(logInUser, currRepo));
 				}
 				break;
 			case CO:
 				if (validateInput1(words)) {
-					// TODO: Implement logic to handle CO.
-					System.out.println(logInUser.checkOut(currRepo));
+					out.get().println(handleCheckOut(logInUser, currRepo, findRepo(currRepo)));
+				}
+				break;
+			case UP:
+				if (validateInput1(words)) {
+					ErrorType update = handleUpdate(logInUser, currRepo, findRepo(currRepo));
+					out.get().println(update);
+					if (update.equals(ErrorType.SUCCESS)) {
+						WorkingCopy theWorkingCopy = findWorkingCopy(logInUser, currRepo);
+						if(theWorkingCopy==null) break;
+						out.get().println(theWorkingCopy.getUpdatedCount() + " document(s) updated.");
+						for (String conflict : theWorkingCopy.getConflicts()) {
+							out.get().println("Conflict on " + conflict + ": local change kept.");
+						}
+					}
 				}
 				break;
 			case RC:
 				if (validateInput1(words)) {
-					// TODO: Implement logic to handle RC.
-					if(VersionControlDb.findRepo(currRepo).getCheckInCount()==0){
-						System.out.println(ErrorType.NO_PENDING_CHECKINS);
+					Repo theRepo = findOpenRepo(currRepo);
+					if(theRepo==null) break;
+					if(theRepo.getCheckInCount()==0){
+						out.get().println(ErrorType.NO_PENDING_CHECKINS);
 						break;
 					}
-					ChangeSet display = VersionControlDb.findRepo(currRepo).getNextCheckIn(logInUser);
-					if(!VersionControlDb.findRepo(currRepo).getAdmin().equals(logInUser)) System.out.println(ErrorType.ACCESS_DENIED);
+					ChangeSet display = handleTakeCheckIn(logInUser, theRepo);
+					if(!theRepo.getAdmin().equals(logInUser)) out.get().println(ErrorType.ACCESS_DENIED);
+					// Another session of the admin may have taken the last one.
+					else if(display==null) out.get().println(ErrorType.NO_PENDING_CHECKINS);
 					else{
-						System.out.println(display.toString());
-						System.out.print("Approve changes? Press y to accept: ");
+						out.get().println(display.toString());
+						printPrompt("Approve changes? Press y to accept: ");
 						String answer = approveOrNot();
-						if(answer.equals("y")) System.out.println(VersionControlDb.findRepo(currRepo).approveCheckIn(logInUser, display));
+						if(answer.equals("y")){
+							out.get().println(handleApproveCheckIn(logInUser, theRepo, display));
+							for (String conflict : display.getConflicts()) {
+								out.get().println("Conflict on " + conflict + ": both versions kept between markers.");
+							}
+						}
 					}
 				}
 				break;
+			case RA:
+				if (words.length == 1 || (words.length == 2 && words[1].trim().matches("[1-9][0-9]{0,8}"))) {
+					int max = words.length == 1 ? Integer.MAX_VALUE : Integer.parseInt(words[1].trim());
+					Repo theRepo = findOpenRepo(currRepo);
+					if(theRepo==null) break;
+					List<ChangeSet> approved = handleApproveCheckIns(logInUser, theRepo, max);
+					if(approved==null) out.get().println(ErrorType.ACCESS_DENIED);
+					else if(approved.isEmpty()) out.get().println(ErrorType.NO_PENDING_CHECKINS);
+					else{
+						out.get().println(ErrorType.SUCCESS);
+						out.get().println(approved.size() + " check-in(s) approved as one version.");
+						for (ChangeSet checkIn : approved) {
+							for (String conflict : checkIn.getConflicts()) {
+								out.get().println("Conflict on " + conflict + ": both versions kept between markers.");
+							}
+						}
+					}
+				}
+				else {
+					out.get().println(ErrorType.UNKNOWN_COMMAND);
+				}
+				break;
 			case VH:
-				if (validateInput1(words)) {
-					// TODO: Implement logic to handle VH.
-					System.out.println(VersionControlDb.findRepo(currRepo).getVersionHistory().toString());
+				if (words.length == 1 || (words.length == 2 && words[1].trim().matches("[0-9]{1,9}"))) {
+					int start = words.length == 1 ? Integer.MAX_VALUE : Integer.parseInt(words[1].trim());
+					Repo theRepo = findOpenRepo(currRepo);
+					if(theRepo==null) break;
+					Iterator<HistoryEntry> history = theRepo.getHistory(start, HISTORY_PAGE_SIZE);
+					int last = -1;
+					while (history.hasNext()) {
+						HistoryEntry entry = history.next();
+						out.get().println(entry.toString());
+						last = entry.getVersion();
+					}
+					if (last > 0) {
+						out.get().println("Older versions: vh " + (last - 1));
+					}
+				}
+				else {
+					out.get().println(ErrorType.UNKNOWN_COMMAND);
+				}
+				break;
+			case DH:
+				if (validateInput2(words)) {
+					Repo theRepo = findOpenRepo(currRepo);
+					if(theRepo==null) break;
+					List<HistoryEntry> docHistory = theRepo.getDocHistory(words[1], HISTORY_PAGE_SIZE);
+					if (docHistory.isEmpty()) {
+						out.get().println(ErrorType.DOC_NOT_FOUND);
+					}
+					for (HistoryEntry entry : docHistory) {
+						out.get().println(entry.toString());
+					}
+				}
+				break;
+			case CV:
+				if (validateInput2(words) && words[1].trim().matches("[0-9]{1,9}")) {
+					Repo theRepo = findOpenRepo(currRepo);
+					if(theRepo==null) break;
+					RepoCopy copy = theRepo.checkOut(logInUser, Integer.parseInt(words[1].trim()));
+					if (copy == null) {
+						out.get().println(logInUser.isSubRepo(currRepo) ? ErrorType.NO_OLDER_VERSION
+								: ErrorType.REPO_NOT_SUBSCRIBED);
+					}
+					else {
+						out.get().println(copy.toString());
+					}
+				}
+				else if (words.length == 2) {
+					out.get().println(ErrorType.UNKNOWN_COMMAND);
+				}
+				break;
+			case RT:
+				if (validateInput2(words) && words[1].trim().matches("[0-9]{1,9}")) {
+					int version = Integer.parseInt(words[1].trim());
+					out.get().println(handleRevertTo(logInUser, findRepo(currRepo), version));
+				}
+				else if (words.length == 2) {
+					out.get().println(ErrorType.UNKNOWN_COMMAND);
 				}
 				break;
 			case RE:	
 				if (validateInput1(words)) {
-					// TODO: Implement logic to handle RE.
-					System.out.println(VersionControlDb.findRepo(currRepo).revert(logInUser));
+					out.get().println(handleRevert(logInUser, findRepo(currRepo)));
 				}
 				break;
 			case HE:
@@ -477,30 +1082,267 @@ public class VersionControlApp {
 				}
 				break;
 			default:
-				System.out.println(ErrorType.UNKNOWN_COMMAND);
+				out.get().println(ErrorType.UNKNOWN_COMMAND);
+			}
+
+		}
+	}
+
+	/**
+	 * Runs a session of the command line utility on the current thread, 
+	 * reading commands from and printing results to the given streams.
+	 * Sessions on different threads may run at the same time.
+	 * @param in The input stream of the session.
+	 * @param printer The output stream of the session.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static void runSession(InputStream in, PrintStream printer) {
+		runSession(in, printer, true);
+	}
+
+	/**
+	 * Runs a session of the command line utility on the current thread, 
+	 * as {@link #runSession(InputStream, PrintStream)} does. The session 
+	 * ends when the input does, even in a sub menu.
+	 * @param in The input stream of the session.
+	 * @param printer The output stream of the session.
+	 * @param prompts False to leave the prompts out of the output.
+	 * @return The number of commands read.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static int runSession(InputStream in, PrintStream printer, boolean prompts) {
+		if (in == null || printer == null) {
+			throw new IllegalArgumentException();
+		}
+		return runSession(in, printer, new PrintStream(new JournalSyncStream(printer), false), prompts);
+	}
+
+	/**
+	 * Runs a session whose results go to an output which syncs the journal 
+	 * before it writes them on to the printer.
+	 * @param in The input stream of the session.
+	 * @param printer The output stream of the session.
+	 * @param synced The output the results are printed to.
+	 * @param prompts False to leave the prompts out of the output.
+	 * @return The number of commands read.
+	 */
+	private static int runSession(InputStream in, PrintStream printer, PrintStream synced, boolean prompts) {
+		scnr.set(new Scanner(in));
+		out.set(synced);
+		showPrompts.set(prompts);
+		commands.set(0);
+		try {
+			processMainMenu();
+		}
+		catch (NoSuchElementException e) {
+			// The input ended before the session quit.
+		}
+		catch (Exception e) {
+			printer.println(ErrorType.INTERNAL_ERROR);
+		}
+		finally {
+			printer.flush();
+			scnr.remove();
+			out.remove();
+			showPrompts.remove();
+		}
+		int count = commands.get();
+		commands.remove();
+		return count;
+	}
+
+	/**
+	 * Runs a script of commands on the current thread. The output is 
+	 * buffered and written in large blocks rather than once per command, 
+	 * and the journal is synced once per block, before it is written, and 
+	 * not after every command.
+	 * @param in The input stream of the script.
+	 * @param printer The output stream of the script.
+	 * @param prompts False to leave the prompts out of the output.
+	 * @return The number of commands run.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public static int runScript(InputStream in, PrintStream printer, boolean prompts) {
+		if (in == null || printer == null) {
+			throw new IllegalArgumentException();
+		}
+		PrintStream buffered = new PrintStream(
+				new BufferedOutputStream(new JournalSyncStream(printer), SCRIPT_BUFFER_SIZE), false);
+		int count = runSession(new BufferedInputStream(in, SCRIPT_BUFFER_SIZE), buffered, buffered, prompts);
+		buffered.flush();
+		return count;
+	}
+
+	/**
+	 * Opens a journal, replays it and logs the following changes into it.
+	 * @param file The journal file.
+	 * @throws IOException if the journal can't be read.
+	 */
+	static void openJournal(File file) throws IOException {
+		journal = new Journal(file);
+		journal.replay();
+		if (journal.getSkippedCount() > 0) {
+			System.err.println(journal.getSkippedCount() + " journal record(s) skipped.");
+		}
+	}
+
+	/**
+	 * Flushes and closes the journal, if any.
+	 */
+	static void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
 			}
+			catch (IOException e) {
+				System.out.println(ErrorType.INTERNAL_ERROR);
+			}
+		}
+	}
 
+	/**
+	 * Starts pruning the history of every repo on a background thread, 
+	 * every HISTORY_GC_PERIOD_MILLIS. A number of the newest versions and 
+	 * the last version of every day are kept; the others are folded into 
+	 * the next version kept and their contents freed. Does nothing if 
+	 * started.
+	 * @param keepLast The number of newest versions kept.
+	 * @throws IllegalArgumentException if keepLast is not positive.
+	 */
+	static synchronized void startHistoryGc(int keepLast) {
+		final RetentionPolicy policy = new RetentionPolicy(keepLast, true, RetentionPolicy.NEVER);
+		if (historyGc != null) {
+			return;
+		}
+		historyGc = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "history-gc");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		historyGc.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (Repo repo : Registry.shared().getRepos()) {
+					try {
+						new HistoryGc(repo, policy).runOnce();
+					}
+					catch (RuntimeException e) {
+						System.err.println("History GC of " + repo.getName() + " failed: " + e);
+					}
+				}
+			}
+		}, HISTORY_GC_PERIOD_MILLIS, HISTORY_GC_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops pruning the history, if started. A cycle under way finishes.
+	 */
+	static synchronized void stopHistoryGc() {
+		if (historyGc != null) {
+			historyGc.shutdown();
+			historyGc = null;
+		}
+	}
+
+	/**
+	 * Runs a script of commands and reports how many ran per second.
+	 * @param name The script file, or "-" for the standard input.
+	 * @param prompts False to leave the prompts out of the output.
+	 * @throws IOException if the script can't be read.
+	 */
+	private static void runScriptFile(String name, boolean prompts) throws IOException {
+		InputStream in = name.equals("-") ? System.in : new FileInputStream(name);
+		try {
+			long start = System.nanoTime();
+			int count = runScript(in, System.out, prompts);
+			long nanos = Math.max(System.nanoTime() - start, 1);
+			System.err.printf("%d commands in %d ms (%.0f commands/s)%n", 
+					count, nanos / 1000000, count * 1e9 / nanos);
+		}
+		finally {
+			if (in != System.in) {
+				in.close();
+			}
 		}
 	}
 
 	/**
 	 * The main method. Simulation starts here.
-	 * @param args Unused
+	 * @param args "-journal &lt;file&gt;" keeps the state in a write-ahead log
+	 * which is replayed on start up; the state is only kept in memory 
+	 * otherwise. "-script &lt;file&gt;" runs the commands of a file, or of 
+	 * the standard input if the file is "-", instead of the console, and 
+	 * reports the commands per second on the standard error. "-quiet" 
+	 * leaves the prompts out of the output. "-gc &lt;n&gt;" prunes the 
+	 * history of every repo in the background, keeping the n newest 
+	 * versions and the last version of every day.
 	 * @throws EmptyStackException 
 	 */
 	public static void main(String []args) throws EmptyStackException {
+		String script = null;
+		boolean prompts = true;
 		try {
-			processMainMenu(); 
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-journal") && i + 1 < args.length) {
+					openJournal(new File(args[++i]));
+				}
+				else if (args[i].equals("-script") && i + 1 < args.length) {
+					script = args[++i];
+				}
+				else if (args[i].equals("-quiet")) {
+					prompts = false;
+				}
+				else if (args[i].equals("-gc") && i + 1 < args.length) {
+					startHistoryGc(Integer.parseInt(args[++i]));
+				}
+			}
+			if (script != null) {
+				runScriptFile(script, prompts);
+			}
+			else {
+				showPrompts.set(prompts);
+				processMainMenu(); 
+			}
 		}
 		// Any exception thrown by the simulation is caught here.
 		catch (Exception e) {
 			System.out.println(ErrorType.INTERNAL_ERROR);
-			// Uncomment this to print the stack trace for debugging purpose.
-			e.printStackTrace();
+			System.err.println("Internal error: " + e);
 		}
 		// Any clean up code goes here.
 		finally {
+			stopHistoryGc();
+			closeJournal();
 			System.out.println("Quitting the simulation.");
 		}
 	}
+
+	/**
+	 * An output stream which makes the journal durable before it passes 
+	 * any output on, so no result reaches the user before the changes it 
+	 * acknowledges are durable. Records appended by other sessions in the 
+	 * meantime share the flush.
+	 */
+	private static final class JournalSyncStream extends FilterOutputStream {
+
+		JournalSyncStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			syncJournal();
+			this.out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			syncJournal();
+			this.out.write(b, off, len);
+		}
+	}
 }
@@ -0,0 +1,83 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Server mode of the version control application. Every client connection
+ * gets a session of the command line utility on its own thread, so many
+ * users can check in, check out and review at the same time. Repos are 
+ * guarded by the striped locks of {@link RepoLocks}.
+ * @author
+ *
+ */
+public class VersionControlServer {
+
+	/* The port listened on when none is given. */
+	private static final int DEFAULT_PORT = 7367;
+
+	/**
+	 * Serves one client connection until the client quits.
+	 * @param socket The connection of the client.
+	 */
+	private static void serve(Socket socket) {
+		try {
+			try {
+				VersionControlApp.runSession(socket.getInputStream(),
+						new PrintStream(socket.getOutputStream(), true));
+			}
+			finally {
+				socket.close();
+			}
+		}
+		catch (IOException e) {
+			System.out.println(ErrorType.INTERNAL_ERROR);
+		}
+	}
+
+	/**
+	 * The main method. Listens for clients until the process is stopped.
+	 * @param args "[port] [-journal &lt;file&gt;] [-gc &lt;n&gt;]"; the journal 
+	 * is replayed on start up and keeps the state between runs; -gc prunes 
+	 * the history of every repo in the background, keeping the n newest 
+	 * versions and the last version of every day.
+	 * @throws IOException if the port can't be listened on.
+	 */
+	public static void main(String []args) throws IOException {
+		int port = DEFAULT_PORT;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-journal") && i + 1 < args.length) {
+				VersionControlApp.openJournal(new File(args[++i]));
+			}
+			else if (args[i].equals("-gc") && i + 1 < args.length) {
+				VersionControlApp.startHistoryGc(Integer.parseInt(args[++i]));
+			}
+			else {
+				port = Integer.parseInt(args[i]);
+			}
+		}
+		ExecutorService sessions = Executors.newCachedThreadPool();
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("Listening on port " + port + ".");
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				sessions.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			}
+		}
+		finally {
+			server.close();
+			sessions.shutdown();
+			VersionControlApp.stopHistoryGc();
+			VersionControlApp.closeJournal();
+		}
+	}
+}
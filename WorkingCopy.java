@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A user's working copy of a repository. It shares the immutable snapshot
+ * of the version checked out, and only keeps the documents the user has
+ * added, edited or deleted since. Checking out is then constant time, and
+ * the memory of a working copy grows with the user's local changes only.
+ * @author
+ *
+ */
+public class WorkingCopy extends RepoCopy {
+
+	/* The snapshot of the version checked out. */
+	private final RepoSnapshot base;
+
+	/* The documents changed locally, keyed by name. A null value marks a
+	 * document of the snapshot deleted locally. */
+	private final Map<String, Document> local;
+
+	/* The names of the local changes queued in a check-in and not changed 
+	 * since. The check-in is merged into the repository when approved, so 
+	 * a newer snapshot supersedes them instead of conflicting with them. */
+	private final Set<String> checkedIn;
+
+	/* The names of the documents changed both locally and in the snapshot
+	 * of the last update. */
+	private final List<String> conflicts;
+
+	/* The number of documents brought up to date by the last update. */
+	private final int updatedCount;
+
+	/**
+	 * Constructs a working copy of a version without any local change.
+	 * @param base The snapshot of the version checked out.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public WorkingCopy(RepoSnapshot base) {
+		this(base, new HashMap<String, Document>(), new HashSet<String>(),
+				new ArrayList<String>(0), 0);
+	}
+
+	/* Constructs a working copy with local changes, as restored from a 
+	 * journal snapshot. */
+	WorkingCopy(RepoSnapshot base, Map<String, Document> local, Set<String> checkedIn,
+			List<String> conflicts, int updatedCount) {
+		super(nameOf(base), base.getVersion(), new ArrayList<Document>(0));
+		this.base = base;
+		this.local = local;
+		this.checkedIn = checkedIn;
+		this.conflicts = conflicts;
+		this.updatedCount = updatedCount;
+	}
+
+	/* Returns the repo name of a snapshot, checked before the super call. */
+	private static String nameOf(RepoSnapshot base) {
+		if(base==null) throw new IllegalArgumentException();
+		return base.getRepoName();
+	}
+
+	/**
+	 * Returns the snapshot of the version checked out.
+	 * @return The base snapshot.
+	 */
+	public RepoSnapshot getBase() {
+		return this.base;
+	}
+
+	/**
+	 * Returns the documents of the working copy. The documents not changed
+	 * locally are rebuilt from the snapshot.
+	 * @return A new list of the documents.
+	 */
+	@Override
+	public List<Document> getDocuments() {
+		List<Document> docs = new ArrayList<Document>();
+		for(Map.Entry<String, String> e : this.base.getDocHashes()){
+			if(!this.local.containsKey(e.getKey())) docs.add(this.base.getDocument(e.getKey()));
+		}
+		for(Document d : this.local.values()){
+			if(d!=null) docs.add(d);
+		}
+		return docs;
+	}
+
+	/**
+	 * Returns a document of the working copy. A document not changed
+	 * locally is rebuilt from the snapshot, so changing it has no effect;
+	 * use {@link #putDoc(Document)} to edit it.
+	 * @param docName The name of the document.
+	 * @return The document if present, null otherwise.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	@Override
+	public Document getDoc(String docName) {
+		if(docName==null) throw new IllegalArgumentException();
+		if(this.local.containsKey(docName)) return this.local.get(docName);
+		return this.base.getDocument(docName);
+	}
+
+	/**
+	 * Adds a new document to the working copy.
+	 * @param doc The document to add.
+	 * @return True if added, false if a document of that name exists.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	@Override
+	public boolean addDoc(Document doc) {
+		if(doc==null) throw new IllegalArgumentException();
+		if(getDoc(doc.getName())!=null) return false;
+		this.local.put(doc.getName(), doc);
+		this.checkedIn.remove(doc.getName());
+		return true;
+	}
+
+	/**
+	 * Adds a document to the working copy, or replaces the one of the same
+	 * name.
+	 * @param doc The document to put.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public void putDoc(Document doc) {
+		if(doc==null) throw new IllegalArgumentException();
+		this.local.put(doc.getName(), doc);
+		this.checkedIn.remove(doc.getName());
+	}
+
+	/**
+	 * Deletes a document from the working copy.
+	 * @param doc The document to delete.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	@Override
+	public void delDoc(Document doc) {
+		if(doc==null) throw new IllegalArgumentException();
+		if(this.base.getDocHashes().containsKey(doc.getName())) this.local.put(doc.getName(), null);
+		else this.local.remove(doc.getName());
+		this.checkedIn.remove(doc.getName());
+	}
+
+	/* Marks every local change as queued in a check-in. Until changed 
+	 * again, they give way to a newer snapshot on update. */
+	void markCheckedIn() {
+		this.checkedIn.addAll(this.local.keySet());
+	}
+
+	/**
+	 * Brings the working copy up to a newer snapshot. Only the documents
+	 * which differ between the two snapshots are looked at, and the local
+	 * changes to every other document are kept. A document changed both
+	 * locally and in the newer snapshot, to a different content, is a
+	 * conflict: the local change is kept and its name is reported by
+	 * {@link #getConflicts()} of the updated working copy. A local change 
+	 * already checked in is not a conflict: the newer snapshot replaces it, 
+	 * as it holds the check-in merged or the check-in is merged on approval.
+	 * @param head The snapshot to update to.
+	 * @return The updated working copy.
+	 * @throws IllegalArgumentException if any argument is null.
+	 */
+	public WorkingCopy update(RepoSnapshot head) {
+		if(head==null) throw new IllegalArgumentException();
+		Map<String, String> changes = this.base.getDocHashes().changesTo(head.getDocHashes());
+		Map<String, Document> kept = new HashMap<String, Document>(this.local);
+		Set<String> keptCheckedIn = new HashSet<String>(this.checkedIn);
+		List<String> conflicted = new ArrayList<String>();
+		for(Map.Entry<String, String> e : changes.entrySet()){
+			if(!kept.containsKey(e.getKey())) continue;
+			Document mine = kept.get(e.getKey());
+			String theirs = e.getValue();
+			boolean same = mine==null ? theirs==null
+					: theirs!=null && BlobStore.hash(mine.getContent()).equals(theirs);
+			if(same || keptCheckedIn.remove(e.getKey())) kept.remove(e.getKey());
+			else conflicted.add(e.getKey());
+		}
+		keptCheckedIn.retainAll(kept.keySet());
+		return new WorkingCopy(head, kept, keptCheckedIn, conflicted, changes.size() - conflicted.size());
+	}
+
+	/**
+	 * Returns the documents changed both locally and in the snapshot of the
+	 * last update, whose local change was kept.
+	 * @return The names of the conflicting documents.
+	 */
+	public List<String> getConflicts() {
+		return Collections.unmodifiableList(this.conflicts);
+	}
+
+	/**
+	 * Returns the number of documents brought up to date by the last
+	 * update, not counting the conflicts.
+	 * @return The updated document count.
+	 */
+	public int getUpdatedCount() {
+		return this.updatedCount;
+	}
+
+	/* Returns the documents changed locally, with null for the ones 
+	 * deleted. */
+	Map<String, Document> getLocalChanges() {
+		return Collections.unmodifiableMap(this.local);
+	}
+
+	/* Returns the names of the local changes checked in and not changed 
+	 * since. */
+	Set<String> getCheckedIn() {
+		return Collections.unmodifiableSet(this.checkedIn);
+	}
+
+	/**
+	 * Returns the number of documents changed locally.
+	 * @return The local change count.
+	 */
+	public int getLocalCount() {
+		return this.local.size();
+	}
+
+	@Override
+	public String toString() {
+		return new RepoCopy(getReponame(), getVersion(), getDocuments()).toString();
+	}
+}
@@ -0,0 +1,121 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress check of concurrent check-ins. Many users check in to one repo at
+ * the same time while its admin reviews and approves, and readers walk the
+ * older versions. At the end every check-in must have been approved exactly
+ * once: one version per check-in and one document per check-in.
+ * Run with: javac -d out *.java bench/CheckInStress.java
+ * && java -cp out CheckInStress
+ * @author
+ *
+ */
+public class CheckInStress {
+
+	/* The number of users checking in at the same time. */
+	private static final int USERS = 16;
+
+	/* The number of check-ins of every user. */
+	private static final int CHECK_INS = 2000;
+
+	/* The number of threads reading older versions meanwhile. */
+	private static final int READERS = 4;
+
+	/**
+	 * Runs the stress check.
+	 * @param args Unused
+	 * @throws Exception if a thread fails or the check does not hold.
+	 */
+	public static void main(String[] args) throws Exception {
+		final User admin = new User("admin");
+		final Repo repo = new Repo(admin, "stress");
+		final int total = USERS * CHECK_INS;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[USERS + READERS];
+
+		for (int u = 0; u < USERS; u++) {
+			final Repo target = repo;
+			final User user = new User("user" + u);
+			threads[u] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < CHECK_INS; i++) {
+							ChangeSet checkIn = new ChangeSet(target.getName());
+							checkIn.addChange(new Document(user.getName() + "-" + i,
+									"checked in by " + user.getName() + "\n", target.getName()),
+									Change.Type.ADD);
+							while (!target.queueCheckIn(checkIn)) {
+								Thread.yield();
+							}
+						}
+					}
+					catch (Exception e) {
+						failures.incrementAndGet();
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for (int r = 0; r < READERS; r++) {
+			threads[USERS + r] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						while (!done.get()) {
+							List<Document> docs = repo.getDocuments();
+							if (docs.size() > repo.getVersion()) failures.incrementAndGet();
+						}
+					}
+					catch (Exception e) {
+						failures.incrementAndGet();
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		int approved = 0;
+		while (approved < total && failures.get() == 0) {
+			ChangeSet next = repo.getNextCheckIn(admin);
+			if (next == null) {
+				Thread.yield();
+				continue;
+			}
+			repo.approveCheckIn(admin, next);
+			approved++;
+		}
+		long nanos = System.nanoTime() - begin;
+		done.set(true);
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		Set<String> names = new HashSet<String>();
+		for (Document d : repo.getDocuments()) {
+			if (!names.add(d.getName())) failures.incrementAndGet();
+		}
+		if (repo.getVersion() != total || names.size() != total
+				|| repo.getCheckInCount() != 0 || failures.get() != 0) {
+			throw new IllegalStateException("version " + repo.getVersion() + ", docs "
+					+ names.size() + ", queued " + repo.getCheckInCount()
+					+ ", failures " + failures.get() + "; expected " + total);
+		}
+		System.out.println(total + " check-ins from " + USERS + " users approved exactly once in "
+				+ nanos / 1000000 + " ms");
+	}
+}
@@ -0,0 +1,113 @@
+import java.util.Random;
+
+/**
+ * Measures what deflating large contents saves on the heap, and what it
+ * costs to store and read them back, with compression off and on. The
+ * simulated repo holds text files of a few to a few hundred kilobytes.
+ * Reads are timed over every file, with the inflated contents cache empty,
+ * then over a small set of files read again and again.
+ * Run with: javac -d out *.java bench/CompressBenchmark.java
+ * && java -cp out CompressBenchmark
+ * @author
+ *
+ */
+public class CompressBenchmark {
+
+	/* The number of files simulated. */
+	private static final int FILES = 400;
+
+	/* The most lines of a file. */
+	private static final int MAX_LINES = 4000;
+
+	/* The number of files of the working set read again and again. */
+	private static final int HOT_FILES = 8;
+
+	/* The number of reads timed for every pass. */
+	private static final int READS = 4000;
+
+	/* The words the lines are made of. */
+	private static final String[] WORDS = {"the", "document", "version", "repo", "user", "change",
+		"return", "if", "null", "throw", "new", "String", "int", "for", "while", "lorem", "ipsum",
+		"dolor", "sit", "amet", "public", "private", "static", "final", "class", "void"};
+
+	/**
+	 * Runs the benchmark.
+	 * @param args Unused
+	 */
+	public static void main(String[] args) {
+		for(int round = 0; round < 2; round++){
+			// The first round warms up.
+			run("off", new BlobStore(BlobStore.DEFAULT_MAX_CHAIN_DEPTH, Integer.MAX_VALUE, 0));
+			run("on", new BlobStore());
+		}
+	}
+
+	/* Stores every file, then times cold and cached reads. */
+	private static void run(String name, BlobStore store) {
+		Random random = new Random(7);
+		long heapBefore = usedHeap();
+		String[] files = files(new Random(42));
+		String[] keys = new String[files.length];
+		long start = System.nanoTime();
+		for(int f = 0; f < files.length; f++){
+			keys[f] = store.put(files[f], null);
+		}
+		long putNanos = System.nanoTime() - start;
+		// Only what the store holds on to is left to measure.
+		files = null;
+		long heap = usedHeap() - heapBefore;
+
+		long checksum = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < READS; i++){
+			checksum += store.get(keys[random.nextInt(keys.length)]).length();
+		}
+		long coldNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		for(int i = 0; i < READS; i++){
+			checksum += store.get(keys[random.nextInt(HOT_FILES)]).length();
+		}
+		long hotNanos = System.nanoTime() - start;
+
+		long chars = store.getContentChars();
+		System.out.println("compression " + name
+				+ ": full " + 2*chars/1024 + " KB, stored " + store.getStoredBytes()/1024 + " KB"
+				+ ", heap " + heap/1024 + " KB"
+				+ ", put " + mbPerSecond(2*chars, putNanos) + " MB/s"
+				+ ", read " + coldNanos/READS/1000.0 + " us/file"
+				+ ", cached read " + hotNanos/READS/1000.0 + " us/file"
+				+ " (" + checksum + ")");
+	}
+
+	/* Makes text files of random lengths from a small vocabulary. */
+	private static String[] files(Random random) {
+		String[] files = new String[FILES];
+		for(int f = 0; f < FILES; f++){
+			int lines = 1 + random.nextInt(MAX_LINES);
+			StringBuilder content = new StringBuilder();
+			for(int l = 0; l < lines; l++){
+				int words = 2 + random.nextInt(10);
+				content.append("\t");
+				for(int w = 0; w < words; w++){
+					content.append(WORDS[random.nextInt(WORDS.length)]).append(w + 1 < words ? " " : ";\n");
+				}
+			}
+			files[f] = content.toString();
+		}
+		return files;
+	}
+
+	/* Returns the heap in use after a collection. */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/* Returns a throughput in megabytes per second. */
+	private static long mbPerSecond(long bytes, long nanos) {
+		return nanos==0 ? 0 : bytes * 1000000000L / nanos / (1024*1024);
+	}
+}
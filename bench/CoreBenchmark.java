@@ -0,0 +1,418 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Benchmarks of the core data structures and repo operations, with warm up
+ * and measurement rounds and parameterised sizes. Reports the mean time
+ * per operation and its standard deviation over the rounds, so runs can be
+ * compared across changes and engines.
+ * Every benchmark runs in FORKS fresh JVMs, so the profile one benchmark 
+ * leaves to the JIT doesn't skew the next. Rounds are warmed up and 
+ * measured for a set time rather than a set count, and results are fed to 
+ * a blackhole so the JIT can't drop the work.
+ * This is not a JMH module: the tree has no Maven or Gradle build, and JMH 
+ * needs one to run its annotation processor and pull its artifacts. The 
+ * harness borrows what the numbers depend on from JMH instead; the 
+ * benchmarks map one to one onto JMH methods once a build is added.
+ * Run with: javac -d out *.java bench/CoreBenchmark.java
+ * && java -cp out CoreBenchmark [benchmark names]
+ * With no names, every benchmark runs: queue, stack, approve, revert,
+ * checkout, history, merge, changeset, gc and snapshot.
+ * @author
+ *
+ */
+public class CoreBenchmark {
+
+	/* The names of the benchmarks, in the order they run. */
+	private static final String[] BENCHMARKS = {"queue", "stack", "approve", "revert", "checkout", "history",
+		"merge", "changeset", "gc", "snapshot"};
+
+	/* The argument which makes a JVM run one benchmark in place. */
+	private static final String FORKED = "-forked";
+
+	/* The number of JVMs every benchmark runs in. */
+	private static final int FORKS = 2;
+
+	/* The least number of rounds run before measuring, and the least time. */
+	private static final int WARMUPS = 3;
+	private static final long WARMUP_NANOS = 1000000000L;
+
+	/* The least number of rounds measured, and the least time. */
+	private static final int ROUNDS = 5;
+	private static final long MEASURE_NANOS = 2000000000L;
+
+	/* The most rounds measured, however short they are. */
+	private static final int MAX_ROUNDS = 200;
+
+	/* The sizes of the ChangeSets approved. */
+	private static final int[] CHANGE_COUNTS = {1, 10, 100, 1000, 10000};
+
+	/* The depths of history reverted through. */
+	private static final int[] HISTORY_DEPTHS = {100, 1000, 10000};
+
+	/* The sizes of the repos checked out. */
+	private static final int[] REPO_SIZES = {1000, 10000, 100000};
+
+	/* The lengths of the histories printed. */
+	private static final int[] HISTORY_LENGTHS = {10, 100, 1000};
+
+	/* The numbers of lines of the documents merged. */
+	private static final int[] MERGE_LINES = {100, 1000, 10000};
+
+	/**
+	 * A measured operation. Every round gets a fresh setup.
+	 */
+	private static abstract class Bench {
+		/* Prepares a round; not measured. */
+		void setUp() throws Exception {
+		}
+
+		/* Runs the operations of a round. */
+		abstract void run() throws Exception;
+	}
+
+	/**
+	 * Consumes the results of the benchmarks so the JIT can't drop the work 
+	 * computing them, the way JMH's Blackhole does: a value is compared with 
+	 * two volatile fields it can't both equal, which costs reads rather 
+	 * than a store.
+	 */
+	private static final class Blackhole {
+		private static volatile long l1 = 1;
+		private static volatile long l2 = 2;
+		private static volatile long stored;
+
+		static void consume(long value) {
+			if (value == l1 & value == l2) stored = value;
+		}
+	}
+
+	/**
+	 * Runs the benchmarks, each in FORKS new JVMs.
+	 * @param args The names of the benchmarks to run, all if none.
+	 * @throws Exception if a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals(FORKED)) {
+			run(args[1]);
+			return;
+		}
+		List<String> selected = new ArrayList<String>(Arrays.asList(args));
+		if (selected.isEmpty()) selected.addAll(Arrays.asList(BENCHMARKS));
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (String name : selected) {
+			if (!Arrays.asList(BENCHMARKS).contains(name)) throw new IllegalArgumentException("No benchmark " + name);
+			for (int fork = 1; fork <= FORKS; fork++) {
+				System.out.println("# " + name + ", fork " + fork + " of " + FORKS);
+				Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						CoreBenchmark.class.getName(), FORKED, name).inheritIO().start();
+				if (process.waitFor() != 0) throw new Exception("Benchmark " + name + " failed");
+			}
+		}
+	}
+
+	/* Runs one benchmark in this JVM. */
+	private static void run(String name) throws Exception {
+		if (name.equals("queue")) queue();
+		else if (name.equals("stack")) stack();
+		else if (name.equals("approve")) approve();
+		else if (name.equals("revert")) revert();
+		else if (name.equals("checkout")) checkOut();
+		else if (name.equals("history")) history();
+		else if (name.equals("merge")) merge();
+		else if (name.equals("changeset")) changeSet();
+		else if (name.equals("gc")) gc();
+		else if (name.equals("snapshot")) snapshot();
+		else throw new IllegalArgumentException("No benchmark " + name);
+	}
+
+	/* Runs the warm up and measured rounds; prints the mean time per 
+	 * operation and its standard deviation over the rounds. */
+	private static void measure(String name, int param, int opsPerRound, Bench bench) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < WARMUPS || System.nanoTime() - start < WARMUP_NANOS; i++) {
+			bench.setUp();
+			bench.run();
+		}
+		double[] perOp = new double[MAX_ROUNDS];
+		int rounds = 0;
+		long measured = 0;
+		while (rounds < MAX_ROUNDS && (rounds < ROUNDS || measured < MEASURE_NANOS)) {
+			bench.setUp();
+			long roundStart = System.nanoTime();
+			bench.run();
+			long nanos = System.nanoTime() - roundStart;
+			measured += nanos;
+			perOp[rounds++] = (double) nanos / opsPerRound;
+		}
+		double mean = 0;
+		for (int i = 0; i < rounds; i++) {
+			mean += perOp[i];
+		}
+		mean /= rounds;
+		double variance = 0;
+		for (int i = 0; i < rounds; i++) {
+			variance += (perOp[i] - mean) * (perOp[i] - mean);
+		}
+		double stddev = Math.sqrt(variance / (rounds - 1));
+		System.out.printf("%-24s %8d %14.1f +- %10.1f ns/op (%d rounds)%n", name, param, mean, stddev, rounds);
+	}
+
+	private static void queue() throws Exception {
+		final int ops = 1000000;
+		measure("SimpleQueue enq+deq", ops, ops, new Bench() {
+			void run() throws Exception {
+				SimpleQueue<Integer> queue = new SimpleQueue<Integer>();
+				Integer item = Integer.valueOf(1);
+				for (int i = 0; i < ops; i++) {
+					queue.enqueue(item);
+					if ((i & 1) == 1) Blackhole.consume(queue.dequeue());
+				}
+				while (!queue.isEmpty()) Blackhole.consume(queue.dequeue());
+			}
+		});
+	}
+
+	private static void stack() throws Exception {
+		final int ops = 1000000;
+		measure("SimpleStack push+pop", ops, ops, new Bench() {
+			void run() throws Exception {
+				SimpleStack<Integer> stack = new SimpleStack<Integer>();
+				Integer item = Integer.valueOf(1);
+				for (int i = 0; i < ops; i++) {
+					stack.push(item);
+				}
+				while (!stack.isEmpty()) Blackhole.consume(stack.pop());
+			}
+		});
+		measure("IntStack push+pop", ops, ops, new Bench() {
+			void run() throws Exception {
+				IntStack stack = new IntStack();
+				for (int i = 0; i < ops; i++) {
+					stack.push(i);
+				}
+				while (!stack.isEmpty()) Blackhole.consume(stack.pop());
+			}
+		});
+	}
+
+	private static void approve() throws Exception {
+		for (final int changes : CHANGE_COUNTS) {
+			final User admin = new User("admin");
+			measure("Repo.approveCheckIn", changes, 1, new Bench() {
+				Repo repo;
+				ChangeSet edit;
+
+				void setUp() throws Exception {
+					repo = newRepo(admin, "approve", changes);
+					edit = new ChangeSet("approve");
+					for (int d = 0; d < changes; d++) {
+						edit.addChange(new Document("doc" + d, "edited " + d + "\n", "approve"), Change.Type.EDIT);
+					}
+				}
+
+				void run() throws Exception {
+					repo.approveCheckIn(admin, edit);
+					Blackhole.consume(repo.getVersion());
+				}
+			});
+		}
+	}
+
+	private static void revert() throws Exception {
+		for (final int depth : HISTORY_DEPTHS) {
+			final User admin = new User("admin");
+			measure("Repo.revert", depth, depth, new Bench() {
+				Repo repo;
+
+				void setUp() throws Exception {
+					repo = newRepo(admin, "revert", 100);
+					for (int v = 1; v < depth; v++) {
+						ChangeSet edit = new ChangeSet("revert");
+						edit.addChange(new Document("doc" + (v % 100), "version " + v + "\n", "revert"), Change.Type.EDIT);
+						repo.approveCheckIn(admin, edit);
+					}
+				}
+
+				void run() throws Exception {
+					for (int v = 0; v < depth; v++) {
+						repo.revert(admin);
+					}
+					Blackhole.consume(repo.getVersion());
+				}
+			});
+		}
+	}
+
+	private static void checkOut() throws Exception {
+		for (final int size : REPO_SIZES) {
+			final String repoName = "checkout" + size;
+			final User admin = Registry.shared().addUser("admin" + size);
+			Repo repo = Registry.shared().addRepo(repoName, admin);
+			fill(repo, admin, size);
+			measure("User.checkOut", size, 1, new Bench() {
+				void run() throws Exception {
+					admin.checkOut(repoName);
+					Blackhole.consume(admin.getWorkingCopy(repoName).getVersion());
+				}
+			});
+		}
+	}
+
+	private static void history() throws Exception {
+		for (final int length : HISTORY_LENGTHS) {
+			final User admin = new User("admin");
+			final Repo repo = newRepo(admin, "history", 10);
+			for (int v = 1; v < length; v++) {
+				ChangeSet edit = new ChangeSet("history");
+				edit.addChange(new Document("doc" + (v % 10), "version " + v + "\n", "history"), Change.Type.EDIT);
+				repo.approveCheckIn(admin, edit);
+			}
+			measure("Repo.getVersionHistory", length, 1, new Bench() {
+				void run() throws Exception {
+					Blackhole.consume(repo.getVersionHistory().length());
+				}
+			});
+			measure("Repo.getHistory page", length, 1, new Bench() {
+				void run() throws Exception {
+					Iterator<HistoryEntry> page = repo.getHistory(Integer.MAX_VALUE, 20);
+					while (page.hasNext()) {
+						Blackhole.consume(page.next().getChangeCount());
+					}
+				}
+			});
+		}
+	}
+
+	private static void merge() throws Exception {
+		for (final int lines : MERGE_LINES) {
+			final String[] versions = new String[3];
+			for (int v = 0; v < versions.length; v++) {
+				StringBuilder content = new StringBuilder();
+				for (int l = 0; l < lines; l++) {
+					// Head and check-in each edit ten lines of their own.
+					boolean edited = v > 0 && l % (lines / 10) == v * 3;
+					content.append(edited ? "edited by " + v : "line " + l).append("\n");
+				}
+				versions[v] = content.toString();
+			}
+			final int merges = 1000000 / lines;
+			measure("Merge3.merge", lines, merges, new Bench() {
+				void run() throws Exception {
+					for (int i = 0; i < merges; i++) {
+						Blackhole.consume(Merge3.merge(versions[0], versions[1], versions[2]).getConflictCount());
+					}
+				}
+			});
+		}
+	}
+
+	private static void changeSet() throws Exception {
+		final int changes = 100000;
+		final Document[] docs = new Document[changes];
+		for (int d = 0; d < changes; d++) {
+			docs[d] = new Document("doc" + d, "content of doc " + d + "\n", "changeset");
+		}
+		measure("ChangeSet add", changes, changes, new Bench() {
+			void run() throws Exception {
+				ChangeSet changeSet = new ChangeSet("changeset");
+				for (Document d : docs) {
+					changeSet.addChange(d, Change.Type.EDIT);
+				}
+				Blackhole.consume(changeSet.getChangeCount());
+			}
+		});
+		final ChangeSet changeSet = new ChangeSet("changeset");
+		for (Document d : docs) {
+			changeSet.addChange(d, Change.Type.EDIT);
+		}
+		measure("ChangeSet iterate", changes, changes, new Bench() {
+			void run() throws Exception {
+				ChangeSet.Cursor c = changeSet.cursor();
+				while (c.next()) {
+					Blackhole.consume(c.getContent().length());
+				}
+			}
+		});
+		System.out.printf("%-24s %8d %14d bytes%n", "ChangeSet size", changes, changeSet.estimateSize());
+	}
+
+	private static void gc() throws Exception {
+		for (final int depth : HISTORY_DEPTHS) {
+			final User admin = new User("admin");
+			final RetentionPolicy policy = new RetentionPolicy(100, false, RetentionPolicy.NEVER);
+			final HistoryGc[] gc = new HistoryGc[1];
+			measure("HistoryGc.runOnce", depth, 1, new Bench() {
+				void setUp() throws Exception {
+					Repo repo = newRepo(admin, "gc", 100);
+					for (int v = 1; v < depth; v++) {
+						ChangeSet edit = new ChangeSet("gc");
+						edit.addChange(new Document("doc" + (v % 100), "version " + v + "\n", "gc"), Change.Type.EDIT);
+						repo.approveCheckIn(admin, edit);
+					}
+					gc[0] = new HistoryGc(repo, policy);
+				}
+
+				void run() throws Exception {
+					Blackhole.consume(gc[0].runOnce().getVersionsDropped());
+				}
+			});
+			// The contents of the versions dropped are freed by the next
+			// cycle once the JVM has collected their snapshots.
+			long freed = gc[0].getLastReport().getBytesFreed();
+			System.gc();
+			freed += gc[0].runOnce().getBytesFreed();
+			System.out.printf("%-24s %8d %14d bytes%n", "HistoryGc freed", depth, freed);
+		}
+	}
+
+	private static void snapshot() throws Exception {
+		for (final int size : new int[] {100, 1000}) {
+			final User admin = new User("admin");
+			final Repo repo = newRepo(admin, "snapshot" + size, size);
+			for (int v = 1; v < 100; v++) {
+				ChangeSet edit = new ChangeSet(repo.getName());
+				for (int d = v % 10; d < size; d += 10) {
+					edit.addChange(new Document("doc" + d, "content of doc " + d + " at version " + v + "\n",
+							repo.getName()), Change.Type.EDIT);
+				}
+				repo.approveCheckIn(admin, edit);
+			}
+			final SnapshotCache cache = SnapshotCache.shared();
+			measure("Repo.checkOut version", size, 1, new Bench() {
+				void setUp() throws Exception {
+					cache.clear();
+				}
+
+				void run() throws Exception {
+					Blackhole.consume(repo.checkOut(admin, 50).getDocuments().size());
+				}
+			});
+			measure("Repo.checkOut cached", size, 1, new Bench() {
+				void run() throws Exception {
+					Blackhole.consume(repo.checkOut(admin, 50).getDocuments().size());
+				}
+			});
+			System.out.printf("%-24s %8d %s%n", "SnapshotCache", size, cache);
+		}
+	}
+
+	/* Creates a repo holding a number of documents. */
+	private static Repo newRepo(User admin, String repoName, int docs) throws Exception {
+		Repo repo = new Repo(admin, repoName);
+		fill(repo, admin, docs);
+		return repo;
+	}
+
+	/* Adds a number of documents to a repo in one check-in. */
+	private static void fill(Repo repo, User admin, int docs) throws Exception {
+		ChangeSet add = new ChangeSet(repo.getName());
+		for (int d = 0; d < docs; d++) {
+			add.addChange(new Document("doc" + d, "content of doc " + d + "\n", repo.getName()), Change.Type.ADD);
+		}
+		repo.approveCheckIn(admin, add);
+	}
+}
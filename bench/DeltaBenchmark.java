@@ -0,0 +1,77 @@
+import java.util.Random;
+
+/**
+ * Measures what storing document versions as deltas saves, and what it costs
+ * to read them back, for several maximum chain depths. Every version of the
+ * simulated documents changes a single line.
+ * Run with: javac -d out *.java bench/DeltaBenchmark.java
+ * && java -cp out DeltaBenchmark
+ * @author
+ *
+ */
+public class DeltaBenchmark {
+
+	/* The number of documents simulated. */
+	private static final int DOCS = 50;
+
+	/* The number of versions of every document. */
+	private static final int VERSIONS = 200;
+
+	/* The number of lines of every document. */
+	private static final int LINES = 500;
+
+	/* The number of random reads timed for every depth. */
+	private static final int READS = 20000;
+
+	/**
+	 * Runs the benchmark.
+	 * @param args Unused
+	 */
+	public static void main(String[] args) {
+		int[] depths = {0, 4, 16, 64};
+		for(int depth : depths){
+			run(depth);
+		}
+	}
+
+	/* Stores every version with a chain depth, then times random reads. */
+	private static void run(int maxChainDepth) {
+		Random random = new Random(42);
+		BlobStore store = new BlobStore(maxChainDepth);
+		String[][] keys = new String[DOCS][VERSIONS];
+		for(int d = 0; d < DOCS; d++){
+			String[] lines = new String[LINES];
+			for(int l = 0; l < LINES; l++){
+				lines[l] = "doc " + d + " line " + l + " lorem ipsum dolor sit amet";
+			}
+			String previous = null;
+			for(int v = 0; v < VERSIONS; v++){
+				lines[random.nextInt(LINES)] = "edited in version " + v;
+				previous = store.put(join(lines), previous);
+				keys[d][v] = previous;
+			}
+		}
+		long start = System.nanoTime();
+		long checksum = 0;
+		for(int i = 0; i < READS; i++){
+			checksum += store.get(keys[random.nextInt(DOCS)][random.nextInt(VERSIONS)]).length();
+		}
+		long nanos = System.nanoTime() - start;
+		long full = 2*store.getContentChars();
+		long stored = store.getStoredBytes();
+		System.out.println("max chain depth " + maxChainDepth
+				+ ": full " + full/1024 + " KB, stored " + stored/1024 + " KB"
+				+ ", saved " + (full - stored)/1024 + " KB"
+				+ ", read " + nanos/READS/1000.0 + " us/doc"
+				+ " (" + checksum + ")");
+	}
+
+	/* Joins lines the way the app stores entered file content. */
+	private static String join(String[] lines) {
+		StringBuilder content = new StringBuilder();
+		for(String line : lines){
+			content.append(line).append("\n");
+		}
+		return content.toString();
+	}
+}
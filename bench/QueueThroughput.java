@@ -0,0 +1,85 @@
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the throughput of the check-in queues when many producers feed
+ * one consumer: SimpleQueue guarded by a lock, as it needs to be to be
+ * shared, against the lock-free MpscQueue.
+ * Run with: javac -d out *.java bench/QueueThroughput.java
+ * && java -cp out QueueThroughput
+ * @author
+ *
+ */
+public class QueueThroughput {
+
+	/* The number of items every producer enqueues. */
+	private static final int ITEMS = 500000;
+
+	/* The numbers of producers measured. */
+	private static final int[] PRODUCERS = {1, 4, 16};
+
+	/**
+	 * Runs the comparison, after a warm up round.
+	 * @param args Unused
+	 * @throws Exception if a thread is interrupted.
+	 */
+	public static void main(String[] args) throws Exception {
+		for (int round = 0; round < 2; round++) {
+			for (int producers : PRODUCERS) {
+				final SimpleQueue<Integer> simple = new SimpleQueue<Integer>();
+				QueueADT<Integer> locked = new QueueADT<Integer>() {
+					public synchronized boolean isEmpty() { return simple.isEmpty(); }
+					public synchronized Integer dequeue() throws EmptyQueueException { return simple.dequeue(); }
+					public synchronized void enqueue(Integer item) { simple.enqueue(item); }
+					public synchronized Integer peek() throws EmptyQueueException { return simple.peek(); }
+					public synchronized int size() { return simple.size(); }
+				};
+				long lockedOps = run(locked, producers);
+				long lockFreeOps = run(new MpscQueue<Integer>(), producers);
+				if (round == 1) {
+					System.out.println(producers + " producer(s): SimpleQueue+lock " + lockedOps
+							+ " ops/s, MpscQueue " + lockFreeOps + " ops/s");
+				}
+			}
+		}
+	}
+
+	/* Moves every item through a queue; returns the items per second. */
+	private static long run(final QueueADT<Integer> queue, int producers) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					Integer item = Integer.valueOf(1);
+					for (int i = 0; i < ITEMS; i++) {
+						queue.enqueue(item);
+					}
+				}
+			});
+			threads[p].start();
+		}
+		long total = (long) producers * ITEMS;
+		long begin = System.nanoTime();
+		start.countDown();
+		long taken = 0;
+		while (taken < total) {
+			if (queue.isEmpty()) {
+				continue;
+			}
+			queue.dequeue();
+			taken++;
+		}
+		long nanos = System.nanoTime() - begin;
+		for (Thread t : threads) {
+			t.join();
+		}
+		return total * 1000000000L / nanos;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Check of updating a working copy after its own check-in was merged. Two
+ * users edit different hunks of one document and both check in; the admin
+ * approves both, which merges the second edit with the first. The first
+ * user then updates: the merged document must replace the local edit,
+ * without a conflict, since the local edit is part of it.
+ * Run with: javac -d out *.java bench/UpdateCheck.java
+ * && java -cp out UpdateCheck
+ * @author
+ *
+ */
+public class UpdateCheck {
+
+	/* The name of the repo and of the document edited. */
+	private static final String REPO = "update", DOC = "doc";
+
+	/**
+	 * Runs the check.
+	 * @param args Unused
+	 * @throws Exception if the check does not hold.
+	 */
+	public static void main(String[] args) throws Exception {
+		User admin = new User("admin");
+		Repo repo = new Repo(admin, REPO);
+		User a = new User("a");
+		User b = new User("b");
+		a.subscribeRepo(REPO);
+		b.subscribeRepo(REPO);
+
+		String original = "one\ntwo\nthree\nfour\nfive\nsix\nseven\n";
+		ChangeSet add = new ChangeSet(REPO);
+		add.addChange(new Document(DOC, original, REPO), Change.Type.ADD);
+		repo.approveCheckIn(admin, add);
+
+		a.checkOut(REPO, repo);
+		b.checkOut(REPO, repo);
+		edit(a, repo, original.replace("two", "TWO"));
+		edit(b, repo, original.replace("six", "SIX"));
+
+		while (repo.getCheckInCount() > 0) {
+			repo.approveCheckIn(admin, repo.getNextCheckIn(admin));
+		}
+		String merged = original.replace("two", "TWO").replace("six", "SIX");
+		if (!repo.getHead().getDocument(DOC).getContent().equals(merged)) {
+			throw new IllegalStateException("merge lost an edit: " + repo.getHead().getDocument(DOC).getContent());
+		}
+
+		if (!a.update(REPO, repo).equals(ErrorType.SUCCESS)) {
+			throw new IllegalStateException("update failed");
+		}
+		WorkingCopy updated = a.getWorkingCopy(REPO);
+		if (!updated.getConflicts().isEmpty() || updated.getLocalCount() != 0
+				|| !updated.getDoc(DOC).getContent().equals(merged)) {
+			throw new IllegalStateException("conflicts " + updated.getConflicts() + ", local changes "
+					+ updated.getLocalCount() + ", content " + updated.getDoc(DOC).getContent());
+		}
+
+		// An edit made after checking in is still a conflict.
+		edit(b, repo, merged.replace("four", "FOUR"));
+		repo.approveCheckIn(admin, repo.getNextCheckIn(admin));
+		WorkingCopy mine = a.getWorkingCopy(REPO);
+		mine.putDoc(new Document(DOC, merged.replace("four", "4"), REPO));
+		a.update(REPO, repo);
+		if (!a.getWorkingCopy(REPO).getConflicts().contains(DOC)) {
+			throw new IllegalStateException("unsaved edit overwritten");
+		}
+		System.out.println("merged check-in updated without conflict");
+	}
+
+	/* Edits the document in a user's working copy and checks it in. */
+	private static void edit(User user, Repo repo, String content) {
+		WorkingCopy workingCopy = user.getWorkingCopy(REPO);
+		String previous = workingCopy.getDoc(DOC).getContent();
+		workingCopy.putDoc(new Document(DOC, content, REPO));
+		user.addToPendingCheckIn(new Document(DOC, content, REPO), Change.Type.EDIT, REPO, previous);
+		if (!user.checkIn(REPO, repo).equals(ErrorType.SUCCESS)) {
+			throw new IllegalStateException("check-in failed");
+		}
+	}
+}